@@ -0,0 +1,312 @@
+package se.jabberwocky.hocon.hiera.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigResolveOptions;
+import se.jabberwocky.hocon.hiera.CachingHoconHiera;
+import se.jabberwocky.hocon.hiera.HoconHiera;
+import se.jabberwocky.hocon.hiera.HoconHieraFileSystem;
+import se.jabberwocky.hocon.hiera.ReloadingHoconHiera;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded HTTP server serving the resolved configuration of the facts given as query parameters, e.g.
+ * <pre>
+ * GET /config?groupId=com.acme&amp;artifactId=shop&amp;env=prd&amp;format=json
+ * </pre>
+ * The configuration is rendered as HOCON unless <code>format=json</code> is given. A request missing a fact required
+ * by the hierarchy or with a fact value containing <code>/</code>, <code>\</code> or <code>..</code>, i.e. a value
+ * that could point a layer outside of the hiera root, is answered with <code>400 Bad Request</code>, a layer failing
+ * to resolve with <code>500 Internal Server Error</code>.
+ * <p>
+ * Each response carries a strong ETag derived from the {@link HoconHiera#fingerprint(Map) fingerprint} of the facts,
+ * i.e. the content hashes of all layers, and a request with a matching <code>If-None-Match</code> header is answered
+ * with <code>304 Not Modified</code> without resolving or rendering anything. Rendered responses are cached by their
+ * ETag and shared by all clients; as the ETag changes with the content of the layers, cached responses never have to
+ * be invalidated. The configuration is resolved against its layers only, not the system properties or the environment
+ * of the server.
+ */
+public class HoconHieraServer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(HoconHieraServer.class.getName());
+
+    public static final String CONTEXT = "/config";
+    public static final String FORMAT_PARAMETER = "format";
+    public static final int DEFAULT_MAX_RESPONSES = 1024;
+
+    private static final ConfigRenderOptions HOCON = ConfigRenderOptions.defaults()
+            .setOriginComments(false)
+            .setJson(false);
+    private static final ConfigRenderOptions JSON = ConfigRenderOptions.concise();
+
+    private final HoconHiera hiera;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int maxResponses;
+    private final LinkedHashMap<String, byte[]> responses = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder rendered = new LongAdder();
+
+    public HoconHieraServer(HoconHiera hiera, InetSocketAddress address) {
+        this(hiera, address, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_RESPONSES);
+    }
+
+    /**
+     * @param hiera the hiera to serve
+     * @param address the address to bind, port zero for any free port
+     * @param threads the number of threads handling requests
+     * @param maxResponses the maximum number of cached responses
+     */
+    public HoconHieraServer(HoconHiera hiera, InetSocketAddress address, int threads, int maxResponses) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("The server needs at least one thread; found " + threads);
+        }
+        this.hiera = hiera;
+        this.maxResponses = maxResponses;
+        try {
+            this.server = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not bind the hiera server to '" + address + "'", e);
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "hiera-server-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(CONTEXT, this::handle);
+    }
+
+    /**
+     * Serve a hiera directory, e.g. <code>java -jar hocon-hiera-server.jar /etc/hiera 8080</code>. Configurations
+     * are resolved through a {@link CachingHoconHiera} shared by all requests and invalidated as layers change. The
+     * server binds the loopback address unless another address, e.g. <code>0.0.0.0</code>, is given.
+     *
+     * @param args the hiera root directory and optionally the port and the address to bind
+     */
+    public static void main(String[] args) {
+        if(args.length < 1 || args.length > 3) {
+            System.err.println("Usage: HoconHieraServer <hiera root> [port] [bind address]");
+            System.exit(4);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        InetSocketAddress address = args.length > 2
+                ? new InetSocketAddress(args[2], port)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        ReloadingHoconHiera reloading = new ReloadingHoconHiera(new HoconHieraFileSystem(args[0]));
+        CachingHoconHiera caching = new CachingHoconHiera(reloading);
+        reloading.addListener(caching);
+        new HoconHieraServer(caching, address).start();
+    }
+
+    /**
+     * @return <code>this</code> for a fluent interface
+     */
+    public HoconHieraServer start() {
+        server.start();
+        LOGGER.info("Serving hiera configuration on " + address());
+        return this;
+    }
+
+    /**
+     * @return the bound address
+     */
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of requests answered with 304 Not Modified
+     */
+    public long notModified() {
+        return notModified.sum();
+    }
+
+    /**
+     * @return the number of responses rendered, i.e. not served from the response cache
+     */
+    public long rendered() {
+        return rendered.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "HoconHieraServer{address=" + address() + ", requests=" + requests()
+                + ", notModified=" + notModified() + ", rendered=" + rendered() + "}";
+    }
+
+    // -- private methods
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            String method = exchange.getRequestMethod();
+            if(!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                send(exchange, 405, "text/plain", "Method " + method + " not allowed\n");
+                return;
+            }
+
+            Map<String, String> facts = query(exchange.getRequestURI().getRawQuery());
+            String format = facts.remove(FORMAT_PARAMETER);
+            boolean json;
+            if(format == null || format.equals("hocon")) {
+                json = false;
+            } else if(format.equals("json")) {
+                json = true;
+            } else {
+                send(exchange, 400, "text/plain", "Unknown format '" + format + "'\n");
+                return;
+            }
+
+            for(Map.Entry<String, String> fact : facts.entrySet()) {
+                if(!valid(fact.getValue())) {
+                    send(exchange, 400, "text/plain", "Invalid value for the fact '" + fact.getKey() + "'\n");
+                    return;
+                }
+            }
+
+            String fingerprint;
+            try {
+                fingerprint = hiera.fingerprint(facts);
+            } catch (ConfigException.UnresolvedSubstitution e) {
+                // only the facts are resolved to find the layers, a substitution in a layer is a server error
+                send(exchange, 400, "text/plain", e.getMessage() + "\n");
+                return;
+            }
+            String etag = "\"" + fingerprint + (json ? "-json" : "-hocon") + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+
+            if(matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                notModified.increment();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            byte[] body = response(etag, fingerprint, facts, json);
+            send(exchange, 200, json ? "application/json" : "application/hocon", body);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not serve '" + exchange.getRequestURI() + "'", e);
+            send(exchange, 500, "text/plain", "Could not resolve the configuration\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] response(String etag, String fingerprint, Map<String, String> facts, boolean json) {
+        synchronized (responses) {
+            byte[] body = responses.get(etag);
+            if(body != null) {
+                return body;
+            }
+        }
+
+        rendered.increment();
+        // not resolved against the system properties or the environment, the ETag covers the layers only
+        Config config = hiera.config(facts).resolve(ConfigResolveOptions.noSystem());
+        byte[] body = config.root().render(json ? JSON : HOCON).getBytes(StandardCharsets.UTF_8);
+
+        // a layer changed while resolving, the body may not match the ETag
+        if(fingerprint.equals(hiera.fingerprint(facts))) {
+            synchronized (responses) {
+                responses.put(etag, body);
+                Iterator<byte[]> iterator = responses.values().iterator();
+                while(responses.size() > maxResponses && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        }
+        return body;
+    }
+
+    /**
+     * @return false if the fact value could resolve a layer outside of the hiera root
+     */
+    private static boolean valid(String value) {
+        return value.indexOf('/') < 0 && value.indexOf('\\') < 0 && !value.contains("..");
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+        for(String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // If-None-Match uses the weak comparison
+            if(candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if(candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, String> query(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if(query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for(String parameter : query.split("&")) {
+            if(parameter.isEmpty()) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return parameters;
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        send(exchange, status, contentType, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        exchange.sendResponseHeaders(status, head ? -1 : body.length);
+        if(!head) {
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        }
+    }
+}
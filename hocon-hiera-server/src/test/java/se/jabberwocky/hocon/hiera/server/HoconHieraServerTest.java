@@ -0,0 +1,186 @@
+package se.jabberwocky.hocon.hiera.server;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigSyntax;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.jabberwocky.hocon.hiera.HoconHieraFileSystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+public class HoconHieraServerTest {
+
+    private static final String QUERY = "/config?env=prd&hostname=web-1";
+
+    private Path root;
+    private HoconHieraServer server;
+
+    @Before
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("hiera-");
+        write("hiera.conf", "hierarchy: [ \"env/\"${env}\".conf\", \"node/\"${hostname}\".conf\" ]");
+        write("env/prd.conf", "env: prd\nport: 8080\nurl: \"http://\"${host}\":\"${port}");
+        write("node/web-1.conf", "host: web-1.acme.com");
+
+        server = new HoconHieraServer(new HoconHieraFileSystem(root),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).start();
+    }
+
+    @After
+    public void teardown() {
+        server.close();
+    }
+
+    @Test
+    public void get_hocon() throws Exception {
+        HttpURLConnection connection = get(QUERY, null);
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("application/hocon"));
+
+        Config config = parse(connection, ConfigSyntax.CONF);
+        assertEquals("http://web-1.acme.com:8080", config.getString("url"));
+    }
+
+    @Test
+    public void get_json() throws Exception {
+        HttpURLConnection connection = get(QUERY + "&format=json", null);
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("application/json"));
+
+        Config config = parse(connection, ConfigSyntax.JSON);
+        assertEquals(8080, config.getInt("port"));
+
+        // the ETag differs per format
+        assertNotEquals(get(QUERY, null).getHeaderField("ETag"), connection.getHeaderField("ETag"));
+    }
+
+    @Test
+    public void get_notModified() throws Exception {
+        String etag = get(QUERY, null).getHeaderField("ETag");
+        assertNotNull(etag);
+        assertFalse(etag.startsWith("W/"));
+
+        HttpURLConnection connection = get(QUERY, etag);
+        assertEquals(304, connection.getResponseCode());
+        assertEquals(etag, connection.getHeaderField("ETag"));
+        assertEquals(1, server.notModified());
+        assertEquals(1, server.rendered());
+    }
+
+    @Test
+    public void get_notModified_weak() throws Exception {
+        String etag = get(QUERY, null).getHeaderField("ETag");
+        assertEquals(304, get(QUERY, "W/" + etag).getResponseCode());
+    }
+
+    @Test
+    public void get_unresolvedSystem() throws Exception {
+        write("node/web-1.conf", "host: ${HOME}");
+        assertEquals(500, get(QUERY, null).getResponseCode());
+    }
+
+    @Test
+    public void get_cached() throws Exception {
+        assertEquals(200, get(QUERY, null).getResponseCode());
+        assertEquals(200, get(QUERY, null).getResponseCode());
+        assertEquals(1, server.rendered());
+    }
+
+    @Test
+    public void get_modified() throws Exception {
+        String etag = get(QUERY, null).getHeaderField("ETag");
+
+        Path file = root.resolve("node/web-1.conf");
+        Files.write(file, "host: web-2.acme.com".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+
+        HttpURLConnection connection = get(QUERY, etag);
+        assertEquals(200, connection.getResponseCode());
+        assertNotEquals(etag, connection.getHeaderField("ETag"));
+        assertEquals("http://web-2.acme.com:8080", parse(connection, ConfigSyntax.CONF).getString("url"));
+    }
+
+    @Test
+    public void get_missingFact() throws Exception {
+        assertEquals(400, get("/config?env=prd", null).getResponseCode());
+    }
+
+    @Test
+    public void get_traversal() throws Exception {
+        write("../secret/x.conf", "password: secret");
+        assertEquals(400, get("/config?env=prd&hostname=../../secret/x", null).getResponseCode());
+        assertEquals(400, get("/config?env=prd&hostname=..%5Csecret%5Cx", null).getResponseCode());
+        assertEquals(0, server.rendered());
+    }
+
+    @Test
+    public void get_unresolvableLayer() throws Exception {
+        write("node/web-1.conf", "host: ${missing}");
+        assertEquals(500, get(QUERY, null).getResponseCode());
+    }
+
+    @Test
+    public void get_unknownFormat() throws Exception {
+        assertEquals(400, get(QUERY + "&format=yaml", null).getResponseCode());
+    }
+
+    @Test
+    public void post() throws Exception {
+        HttpURLConnection connection = open(QUERY);
+        connection.setRequestMethod("POST");
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    // -- support
+
+    private void write(String path, String content) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private HttpURLConnection get(String path, String ifNoneMatch) throws IOException {
+        HttpURLConnection connection = open(path);
+        if(ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        return connection;
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        InetSocketAddress address = server.address();
+        URL url = new URL("http", address.getHostString(), address.getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    private static Config parse(HttpURLConnection connection, ConfigSyntax syntax) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream stream = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return ConfigFactory.parseString(new String(bytes.toByteArray(), StandardCharsets.UTF_8),
+                ConfigParseOptions.defaults().setSyntax(syntax));
+    }
+
+}
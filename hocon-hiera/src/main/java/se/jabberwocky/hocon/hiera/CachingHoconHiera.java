@@ -0,0 +1,543 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HOCON Hiera decorator memoizing the configuration of each set of facts. Results are cached under the values of
+ * the facts referenced by the hierarchy only, i.e. facts not used by any hierarchy template do not affect the cache.
+ * The hierarchy is compiled again, and all entries dropped, when the fingerprint of the hiera config changes. The
+ * hiera config is only checked on a miss, i.e. a hit is a single map lookup and asynchronous lookups check it off the
+ * calling thread; a changed hiera config drops the cached entries right away only if notified through
+ * {@link #changed(Set)}.
+ * <p>
+ * Entries are evicted when the cache exceeds its maximum size, least recently used first, and expire after an
+ * optional time to live. Register the cache as a listener of a {@link ReloadingHoconHiera} to recompute the
+ * entries depending on a changed layer.
+ * <p>
+ * Each entry depends on all layer paths of its hierarchy, including the absent ones, and a reverse index from layer
+ * path to the dependent entries means a changed layer only touches the entries using it, e.g. a change to a node
+ * layer recomputes the configuration of that single node. The affected entries are dropped on the thread reporting
+ * the change, e.g. the watch service thread, and recomputed on the refresh executor.
+ */
+public class CachingHoconHiera implements HoconHiera, HieraChangeListener {
+
+    private static final Logger LOGGER = Logger.getLogger(CachingHoconHiera.class.getName());
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private final HoconHiera hiera;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Executor refreshExecutor;
+    // in order of insertion or last hit, lookups that are not hits do not reorder the entries
+    private final LinkedHashMap<List<String>, Entry> entries = new LinkedHashMap<>();
+    // layer path to the keys of the entries depending on it, guarded by the entries
+    private final Map<String, Set<List<String>>> dependents = new HashMap<>();
+    private volatile Compiled hierarchy;
+    // incremented on every change, results computed before a change of any of their paths are not cached
+    private long version;
+    private long cleared;
+    // the version of the last change of each path in order of change, bounded by the max size
+    private final LinkedHashMap<String, Long> changedAt = new LinkedHashMap<>();
+    // the version of the last change pruned from the changes of the paths
+    private long pruned;
+
+    // keyed by the key of the entry and the version of the last change of its layers
+    private final InFlight<List<?>, Config> inFlight = new InFlight<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    public CachingHoconHiera(HoconHiera hiera) {
+        this(hiera, DEFAULT_MAX_SIZE, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param hiera the decorated hiera
+     * @param maxSize the maximum number of cached configurations
+     * @param ttl the time to live of a cached configuration, zero for no expiry
+     * @param unit the unit of the time to live
+     */
+    public CachingHoconHiera(HoconHiera hiera, int maxSize, long ttl, TimeUnit unit) {
+        this(hiera, maxSize, ttl, unit, HieraExecutors.defaultExecutor());
+    }
+
+    /**
+     * @param hiera the decorated hiera
+     * @param maxSize the maximum number of cached configurations
+     * @param ttl the time to live of a cached configuration, zero for no expiry
+     * @param unit the unit of the time to live
+     * @param refreshExecutor used for recomputing the configurations depending on a changed layer
+     */
+    public CachingHoconHiera(HoconHiera hiera, int maxSize, long ttl, TimeUnit unit, Executor refreshExecutor) {
+        if(maxSize < 1) {
+            throw new IllegalArgumentException("The max size must be at least one; found " + maxSize);
+        }
+        this.hiera = hiera;
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    @Override
+    public Config hiera() {
+        return hiera.hiera();
+    }
+
+    /**
+     * Return the hierarchy of the decorated hiera, compiled once until the hiera config changes. A changed hiera
+     * config drops all cached configurations. Changes are detected by the fingerprint of the hiera config, i.e. a
+     * decorated hiera parsing the hiera config again on each call does not drop the cache.
+     */
+    @Override
+    public Hierarchy hierarchy() {
+        // read before compiling, a hiera config changing in between is compiled again on the next call
+        String source = hiera.fingerprint(HIERA_CONFIG_FILE);
+        Compiled compiled = this.hierarchy;
+        if(compiled == null || !compiled.source.equals(source)) {
+            Compiled current = new Compiled(source, hiera.hierarchy());
+            synchronized (entries) {
+                if(this.hierarchy != compiled && this.hierarchy != null) {
+                    // installed by another thread in the meantime, possibly from a newer hiera config
+                    return this.hierarchy.hierarchy;
+                }
+                if(this.hierarchy != null) {
+                    clear();
+                }
+                this.hierarchy = current;
+            }
+            compiled = current;
+        }
+        return compiled.hierarchy;
+    }
+
+    @Override
+    public Config config(String path) {
+        return hiera.config(path);
+    }
+
+    @Override
+    public String fingerprint(String path) {
+        return hiera.fingerprint(path);
+    }
+
+    @Override
+    public long size(String path) {
+        return hiera.size(path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return hiera.exists(path);
+    }
+
+    @Override
+    public HieraMetrics metrics() {
+        return hiera.metrics();
+    }
+
+    @Override
+    public Config merge(List<String> paths, List<Config> layers) {
+        return hiera.merge(paths, layers);
+    }
+
+    @Override
+    public Config config(Map<String, String> facts) {
+        return lookup(facts, null);
+    }
+
+    /**
+     * Return the cached subtree of the configuration, subtrees are cached per prefix next to the full configurations
+     * and recomputed on changes of their layers alike.
+     */
+    @Override
+    public Config config(Map<String, String> facts, String prefix) {
+        return lookup(facts, prefix);
+    }
+
+    /**
+     * Retrieve the configuration asynchronously, completing immediately if cached. Concurrent misses for the same
+     * facts share a single lookup of the decorated hiera.
+     */
+    @Override
+    public CompletableFuture<Config> configAsync(Map<String, String> facts, Executor executor) {
+        // the hierarchy is only retrieved off the calling thread if it has to be compiled or on a miss
+        long start = System.nanoTime();
+        Compiled compiled = this.hierarchy;
+        if(compiled != null) {
+            Config config = cached(key(compiled.hierarchy, facts), start);
+            if(config != null) {
+                return CompletableFuture.completedFuture(config);
+            }
+        }
+
+        return CompletableFuture.supplyAsync(this::hierarchy, executor).thenCompose(hierarchy -> {
+            List<String> key = key(hierarchy, facts);
+
+            List<String> paths = hierarchy.paths(facts);
+
+            long version;
+            long changed;
+            synchronized (entries) {
+                Config config = cached(key, start);
+                if(config != null) {
+                    return CompletableFuture.completedFuture(config);
+                }
+                version = this.version;
+                changed = changed(paths);
+            }
+
+            misses.increment();
+            // a lookup started before the last change of the layers is not joined
+            return inFlight.get(Arrays.asList(key, changed), () -> hiera.configAsync(facts, executor)
+                    .thenApply(config -> {
+                        put(key, new Entry(hierarchy.referenced(facts), null, paths, config, ttlNanos), version);
+                        return config;
+                    }));
+        });
+    }
+
+    /**
+     * Drop the cached configurations depending on any of the changed paths and recompute them on the refresh
+     * executor, or drop all configurations if the hiera config itself has changed.
+     *
+     * @param paths the changed paths
+     */
+    @Override
+    public void changed(Set<String> paths) {
+        if(paths.contains(HIERA_CONFIG_FILE)) {
+            invalidateAll();
+            return;
+        }
+
+        List<Entry> affected = new ArrayList<>();
+        long version;
+        synchronized (entries) {
+            this.version++;
+            version = this.version;
+            Set<List<String>> keys = new HashSet<>();
+            for(String path : paths) {
+                changedAt.remove(path);
+                changedAt.put(path, version);
+                keys.addAll(dependents.getOrDefault(path, Collections.emptySet()));
+            }
+            prune();
+            for(List<String> key : keys) {
+                Entry entry = remove(key);
+                if(!entry.isExpired()) {
+                    affected.add(entry);
+                }
+            }
+        }
+
+        for(Entry entry : affected) {
+            try {
+                refreshExecutor.execute(() -> refresh(entry, version));
+            } catch (RejectedExecutionException e) {
+                LOGGER.log(Level.WARNING, "Could not schedule recomputing the configuration of " + entry.facts, e);
+            }
+        }
+    }
+
+    /**
+     * Drop all cached configurations and the compiled hierarchy.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            hierarchy = null;
+            clear();
+        }
+    }
+
+    /**
+     * @param path the path of a layer
+     * @return the facts of the cached configurations depending on the layer
+     */
+    public List<Map<String, String>> dependents(String path) {
+        List<Map<String, String>> facts = new ArrayList<>();
+        synchronized (entries) {
+            for(List<String> key : dependents.getOrDefault(path, Collections.emptySet())) {
+                facts.add(entries.get(key).facts);
+            }
+        }
+        return facts;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of configurations recomputed and cached again after a change of their layers
+     */
+    public long refreshes() {
+        return refreshes.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachingHoconHiera{size=" + size() + "/" + maxSize
+                + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions()
+                + ", refreshes=" + refreshes() + "}";
+    }
+
+    // -- private methods
+
+    private Config lookup(Map<String, String> facts, String prefix) {
+        // as for asynchronous lookups, the hiera config is only checked on a miss, i.e. a hit is a map lookup
+        long start = System.nanoTime();
+        Compiled compiled = this.hierarchy;
+        if(compiled != null) {
+            Config config = cached(key(compiled.hierarchy, facts, prefix), start);
+            if(config != null) {
+                return config;
+            }
+        }
+
+        Hierarchy hierarchy = hierarchy();
+        List<String> key = key(hierarchy, facts, prefix);
+
+        long version;
+        synchronized (entries) {
+            Config config = cached(key, start);
+            if(config != null) {
+                return config;
+            }
+            version = this.version;
+        }
+
+        misses.increment();
+        return load(hierarchy, key, facts, prefix, version);
+    }
+
+    /**
+     * @return the cached configuration of the key, or null if not cached
+     */
+    private Config cached(List<String> key, long start) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if(entry == null || entry.isExpired()) {
+                return null;
+            }
+            // only hits move an entry to the end of the eviction order
+            entries.remove(key);
+            entries.put(key, entry);
+            hit(start);
+            return entry.config;
+        }
+    }
+
+    /**
+     * Count a hit and report it as a lookup, misses are reported by the decorated hiera.
+     */
+    private void hit(long start) {
+        hits.increment();
+        metrics().lookup(System.nanoTime() - start);
+    }
+
+    /**
+     * The canonical key of a set of facts, i.e. the values of the facts referenced by the hierarchy in order.
+     */
+    private static List<String> key(Hierarchy hierarchy, Map<String, String> facts) {
+        return key(hierarchy, facts, null);
+    }
+
+    /**
+     * The canonical key of a subtree of the configuration, i.e. the key of the facts followed by the prefix.
+     */
+    private static List<String> key(Hierarchy hierarchy, Map<String, String> facts, String prefix) {
+        List<String> key = new ArrayList<>(hierarchy.facts().size() + 1);
+        for(String fact : hierarchy.facts()) {
+            key.add(facts.get(fact));
+        }
+        if(prefix != null) {
+            key.add(prefix);
+        }
+        return key;
+    }
+
+    private Config load(Hierarchy hierarchy, List<String> key, Map<String, String> facts, String prefix,
+                        long version) {
+        Entry entry = compute(hierarchy, facts, prefix);
+        put(key, entry, version);
+        return entry.config;
+    }
+
+    /**
+     * Recompute a configuration dropped after a change of its layers, unless changed again in the meantime.
+     */
+    private void refresh(Entry previous, long version) {
+        try {
+            Hierarchy hierarchy = hierarchy();
+            Entry entry = compute(hierarchy, previous.facts, previous.prefix);
+            if(put(key(hierarchy, previous.facts, previous.prefix), entry, version)) {
+                refreshes.increment();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not recompute the configuration of " + previous.facts, e);
+        }
+    }
+
+    private Entry compute(Hierarchy hierarchy, Map<String, String> facts, String prefix) {
+        List<String> paths = hierarchy.paths(facts);
+        Config config = prefix == null ? hiera.config(facts) : hiera.config(facts, prefix);
+        return new Entry(hierarchy.referenced(facts), prefix, paths, config, ttlNanos);
+    }
+
+    /**
+     * @return true if the entry was cached, false if a layer of the entry changed while it was being computed
+     */
+    private boolean put(List<String> key, Entry entry, long version) {
+        synchronized (entries) {
+            if(isChanged(entry.paths, version)) {
+                return false;
+            }
+            Entry replaced = entries.put(key, entry);
+            if(replaced != null) {
+                unindex(key, replaced);
+            }
+            for(String path : entry.paths) {
+                dependents.computeIfAbsent(path, p -> new HashSet<>()).add(key);
+            }
+            Iterator<Map.Entry<List<String>, Entry>> iterator = entries.entrySet().iterator();
+            while(entries.size() > maxSize && iterator.hasNext()) {
+                Map.Entry<List<String>, Entry> eldest = iterator.next();
+                iterator.remove();
+                unindex(eldest.getKey(), eldest.getValue());
+                evictions.increment();
+            }
+            prune();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the entries were cleared or any of the paths changed after the version, guarded by the entries
+     */
+    private boolean isChanged(List<String> paths, long version) {
+        return changed(paths) > version;
+    }
+
+    /**
+     * @return the version of the last change of any of the paths or of clearing the entries, guarded by the entries
+     */
+    private long changed(List<String> paths) {
+        long changed = Math.max(cleared, pruned);
+        for(String path : paths) {
+            changed = Math.max(changed, changedAt.getOrDefault(path, 0L));
+        }
+        return changed;
+    }
+
+    /**
+     * Forget the oldest changes beyond the max size, guarded by the entries. The changes pruned still apply to all
+     * paths, i.e. a result computed before any of them is not cached.
+     */
+    private void prune() {
+        Iterator<Long> iterator = changedAt.values().iterator();
+        while(changedAt.size() > maxSize && iterator.hasNext()) {
+            pruned = Math.max(pruned, iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop all entries, guarded by the entries.
+     */
+    private void clear() {
+        version++;
+        cleared = version;
+        changedAt.clear();
+        entries.clear();
+        dependents.clear();
+    }
+
+    private Entry remove(List<String> key) {
+        Entry entry = entries.remove(key);
+        unindex(key, entry);
+        return entry;
+    }
+
+    private void unindex(List<String> key, Entry entry) {
+        for(String path : entry.paths) {
+            Set<List<String>> keys = dependents.get(path);
+            if(keys != null) {
+                keys.remove(key);
+                if(keys.isEmpty()) {
+                    dependents.remove(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * The compiled hierarchy with the hiera config it was compiled from.
+     */
+    private static final class Compiled {
+
+        // the fingerprint of the hiera config
+        private final String source;
+        private final Hierarchy hierarchy;
+
+        private Compiled(String source, Hierarchy hierarchy) {
+            this.source = source;
+            this.hierarchy = hierarchy;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Map<String, String> facts;
+        // the prefix of a cached subtree, null for the full configuration
+        private final String prefix;
+        private final List<String> paths;
+        private final Config config;
+        private final long expires;
+
+        private Entry(Map<String, String> facts, String prefix, List<String> paths, Config config, long ttlNanos) {
+            this.facts = facts;
+            this.prefix = prefix;
+            this.paths = paths;
+            this.config = config;
+            this.expires = ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0;
+        }
+
+        private boolean isExpired() {
+            return expires != 0 && System.nanoTime() - expires > 0;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HOCON Hiera combining several roots, e.g. a local override directory over a shared mounted config root, into a
+ * single hiera.
+ * <p>
+ * The roots are overlaid in order of increasing precedence: the layer at each path is the layer at that path of
+ * every root merged, each root falling back on the roots before it, and the hiera config is merged alike with the
+ * hierarchies of all roots combined into one. A template only in a higher root is kept after the templates it follows
+ * in that root, i.e. a root may add layers to the hierarchy without repeating the hierarchy of the roots below.
+ * <p>
+ * Each root is probed on its own executor and all roots are probed concurrently, so a slow root does not hold up the
+ * others. Each root keeps the last layer it returned for each path: a root failing or not responding within the
+ * timeout contributes its last known layer rather than failing the lookup. A lookup fails if a root never returned a
+ * result for it, as leaving the root out would silently serve an incomplete configuration. The last known results are
+ * bounded per root, least recently used first out. While a probe of a root is overdue the root is not waited for if
+ * it has a last known result, i.e. a slow root delays a single probe of each key only.
+ * The caching of the layers themselves is left to the roots, e.g. the cache of each {@link HoconHieraFileSystem}.
+ */
+public class CompositeHoconHiera implements HoconHiera, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(CompositeHoconHiera.class.getName());
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_LAST_KNOWN = 4096;
+
+    // prefixes of the keys of the last known results
+    private static final String HIERA_KEY = "hiera:";
+    private static final String CONFIG_KEY = "config:";
+    private static final String FINGERPRINT_KEY = "fingerprint:";
+    private static final String EXISTS_KEY = "exists:";
+    private static final String SIZE_KEY = "size:";
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final List<Root> roots;
+    private final long timeoutNanos;
+    private volatile CompiledHierarchy hierarchy;
+
+    public CompositeHoconHiera(List<? extends HoconHiera> roots) {
+        this(roots, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param roots the roots in order of increasing precedence
+     * @param timeout the time to wait for the roots to return a layer
+     * @param unit the unit of the timeout
+     * @param threads the number of threads probing each root
+     */
+    public CompositeHoconHiera(List<? extends HoconHiera> roots, long timeout, TimeUnit unit, int threads) {
+        this(roots, timeout, unit, threads, DEFAULT_MAX_LAST_KNOWN);
+    }
+
+    /**
+     * @param roots the roots in order of increasing precedence
+     * @param timeout the time to wait for the roots to return a layer
+     * @param unit the unit of the timeout
+     * @param threads the number of threads probing each root
+     * @param maxLastKnown the maximum number of last known results kept per root
+     */
+    public CompositeHoconHiera(List<? extends HoconHiera> roots, long timeout, TimeUnit unit, int threads,
+                               int maxLastKnown) {
+        if(roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one root is required");
+        }
+        if(threads < 1) {
+            throw new IllegalArgumentException("The threads must be at least one; found " + threads);
+        }
+        if(maxLastKnown < 1) {
+            throw new IllegalArgumentException("The max last known results must be at least one; found "
+                    + maxLastKnown);
+        }
+        int composite = COUNT.incrementAndGet();
+        List<Root> list = new ArrayList<>(roots.size());
+        for(int i = 0; i < roots.size(); i++) {
+            list.add(new Root(roots.get(i), "hiera-composite-" + composite + "-root-" + i, threads, maxLastKnown));
+        }
+        this.roots = Collections.unmodifiableList(list);
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Return the hiera configs of all roots merged, with the hierarchies of the roots combined.
+     */
+    @Override
+    public Config hiera() {
+        return compiled().hiera;
+    }
+
+    /**
+     * Return the combined hierarchy, compiled again only if the hiera config of any root has changed.
+     */
+    @Override
+    public Hierarchy hierarchy() {
+        return compiled().hierarchy;
+    }
+
+    /**
+     * Return the layer at the path of every root merged.
+     */
+    @Override
+    public Config config(String path) {
+        List<Config> layers = probe(CONFIG_KEY + path, hiera -> hiera.config(path));
+        Config merged = ConfigFactory.empty();
+        for(int i = layers.size() - 1; i >= 0; i--) {
+            merged = merged.withFallback(layers.get(i));
+        }
+        return merged;
+    }
+
+    /**
+     * Return a hash of the fingerprints of the path in every root, the fingerprint changes if the layer changes in
+     * any of the roots.
+     */
+    @Override
+    public String fingerprint(String path) {
+        List<String> fingerprints = probe(FINGERPRINT_KEY + path, hiera -> hiera.fingerprint(path));
+        if(fingerprints.stream().allMatch(MISSING_FINGERPRINT::equals)) {
+            return MISSING_FINGERPRINT;
+        }
+        MessageDigest digest = Digests.sha256();
+        for(String fingerprint : fingerprints) {
+            Digests.update(digest, fingerprint);
+        }
+        return Digests.hex(digest.digest());
+    }
+
+    /**
+     * Return the total size of the path in every root, or -1 if unknown in any of them.
+     */
+    @Override
+    public long size(String path) {
+        long total = 0;
+        for(long size : probe(SIZE_KEY + path, hiera -> hiera.size(path))) {
+            if(size < 0) {
+                return -1;
+            }
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * Return whether the path exists in any of the roots.
+     */
+    @Override
+    public boolean exists(String path) {
+        return probe(EXISTS_KEY + path, hiera -> hiera.exists(path)).contains(Boolean.TRUE);
+    }
+
+    /**
+     * @return the number of probes that failed or timed out, in all roots
+     */
+    public long failures() {
+        return roots.stream().mapToLong(root -> root.failures.sum()).sum();
+    }
+
+    /**
+     * @param index the index of a root in order of increasing precedence
+     * @return the number of probes of the root that failed or timed out
+     */
+    public long failures(int index) {
+        return roots.get(index).failures.sum();
+    }
+
+    /**
+     * Shut down the executors of the roots.
+     */
+    @Override
+    public void close() {
+        roots.forEach(root -> root.executor.shutdownNow());
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeHoconHiera{roots=" + roots.size() + ", failures=" + failures() + "}";
+    }
+
+    // -- private methods
+
+    /**
+     * Probe all roots concurrently and wait for them until the timeout.
+     *
+     * @return the result of each root, or its last known result if it failed
+     * @throws RuntimeException if a root failed and never returned a result for the key
+     */
+    private <T> List<T> probe(String key, Function<HoconHiera, T> probe) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(roots.size());
+        for(Root root : roots) {
+            futures.add(root.probe(key, probe));
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        List<T> results = new ArrayList<>(roots.size());
+        for(int i = 0; i < roots.size(); i++) {
+            results.add(roots.get(i).await(key, futures.get(i), deadline));
+        }
+        return results;
+    }
+
+    /**
+     * Return the combined hiera config and hierarchy, combined and compiled again only if the hiera config of any root
+     * has changed.
+     */
+    private CompiledHierarchy compiled() {
+        List<Config> sources = probe(HIERA_KEY, HoconHiera::hiera);
+        CompiledHierarchy compiled = this.hierarchy;
+        if(compiled == null || !compiled.isSource(sources)) {
+            Config hiera = combine(sources);
+            compiled = new CompiledHierarchy(sources, hiera, Hierarchy.compile(hiera));
+            this.hierarchy = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * Merge the hiera configs of the roots, combining their hierarchies.
+     */
+    private static Config combine(List<Config> configs) {
+        Config merged = ConfigFactory.empty();
+        List<ConfigValue> templates = new ArrayList<>();
+        ConfigList highest = null;
+        for(Config config : configs) {
+            merged = config.withFallback(merged);
+            ConfigValue value = config.root().get(HIERARCHY_CONFIG_KEY);
+            if(value instanceof ConfigList) {
+                combine(templates, (ConfigList) value);
+                highest = (ConfigList) value;
+            }
+        }
+        if(highest == null) {
+            return merged;
+        }
+        return merged.withValue(HIERARCHY_CONFIG_KEY,
+                ConfigValueFactory.fromIterable(templates, highest.origin().description()));
+    }
+
+    /**
+     * Add the templates missing in the combined hierarchy, each after the template preceding it in its own hierarchy.
+     */
+    private static void combine(List<ConfigValue> templates, ConfigList hierarchy) {
+        int position = 0;
+        for(ConfigValue template : hierarchy) {
+            int index = templates.indexOf(template);
+            if(index < 0) {
+                templates.add(position, template);
+                position++;
+            } else {
+                position = index + 1;
+            }
+        }
+    }
+
+    /**
+     * A root with its own executor and the last result of each probe.
+     */
+    private static final class Root {
+
+        private final HoconHiera hiera;
+        private final String name;
+        private final ExecutorService executor;
+        // least recently used first, guarded by itself
+        private final LinkedHashMap<String, Object> lastKnown = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxLastKnown;
+        private final InFlight<String, Object> inFlight = new InFlight<>();
+        // probes still running past their timeout, the root is not waited for while any is
+        private final AtomicInteger overdue = new AtomicInteger();
+        private final LongAdder failures = new LongAdder();
+
+        private Root(HoconHiera hiera, String name, int threads, int maxLastKnown) {
+            this.hiera = hiera;
+            this.name = name;
+            this.maxLastKnown = maxLastKnown;
+            AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * Probe the root, concurrent probes of the same key share a single call of the root.
+         */
+        @SuppressWarnings("unchecked")
+        private <T> CompletableFuture<T> probe(String key, Function<HoconHiera, T> probe) {
+            return (CompletableFuture<T>) inFlight.get(key, () -> {
+                // remembered before completing, a late result still becomes the last known result
+                return CompletableFuture.supplyAsync(() -> {
+                    Object result = probe.apply(hiera);
+                    remember(key, result);
+                    return result;
+                }, executor);
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T await(String key, CompletableFuture<T> future, long deadline) {
+            Throwable cause;
+            try {
+                // a root already overdue is not waited for if the key is known, i.e. a slow root delays a single probe
+                // of each key only
+                boolean skip = overdue.get() > 0 && lastKnown(key) != null;
+                long timeout = skip ? 0 : Math.max(deadline - System.nanoTime(), 0);
+                return future.get(timeout, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                cause = e;
+                if(overdue.getAndIncrement() == 0) {
+                    LOGGER.warning("The hiera root " + name + " timed out probing '" + key + "'");
+                }
+                future.whenComplete((result, failure) -> overdue.decrementAndGet());
+            } catch (ExecutionException e) {
+                cause = e.getCause();
+                LOGGER.log(Level.WARNING, "The hiera root " + name + " failed probing '" + key + "'", cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while probing '" + key + "'", e);
+            }
+            failures.increment();
+
+            T result = (T) lastKnown(key);
+            if(result == null) {
+                // leaving the root out would serve an incomplete result
+                throw new RuntimeException("Could not probe '" + key + "' in the hiera root " + name
+                        + ", it never returned a result", cause);
+            }
+            return result;
+        }
+
+        private Object lastKnown(String key) {
+            synchronized (lastKnown) {
+                return lastKnown.get(key);
+            }
+        }
+
+        private void remember(String key, Object result) {
+            synchronized (lastKnown) {
+                lastKnown.put(key, result);
+                Iterator<Object> iterator = lastKnown.values().iterator();
+                while(lastKnown.size() > maxLastKnown && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The combined hiera config and hierarchy with the hiera configs of the roots they were combined from.
+     */
+    private static final class CompiledHierarchy {
+
+        private final List<Config> sources;
+        private final Config hiera;
+        private final Hierarchy hierarchy;
+
+        private CompiledHierarchy(List<Config> sources, Config hiera, Hierarchy hierarchy) {
+            this.sources = sources;
+            this.hiera = hiera;
+            this.hierarchy = hierarchy;
+        }
+
+        private boolean isSource(List<Config> sources) {
+            for(int i = 0; i < sources.size(); i++) {
+                if(this.sources.get(i) != sources.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
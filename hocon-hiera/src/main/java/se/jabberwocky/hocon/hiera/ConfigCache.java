@@ -0,0 +1,194 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of parsed Config instances. Each entry is stored together with a stamp (e.g. the modification
+ * time and size of the source file) and is only returned for as long as the stamp of the source remains the same.
+ * The cache is bounded by the total weight of its entries where the weight typically is the size of the source in
+ * bytes.
+ */
+public final class ConfigCache {
+
+    /**
+     * Default maximum weight of a cache, i.e. 16 MiB of HOCON source.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 16 * 1024 * 1024;
+
+    private final long maxWeight;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ConfigCache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxWeight the maximum total weight of the cached entries, zero disables the cache
+     */
+    public ConfigCache(long maxWeight) {
+        if(maxWeight < 0) {
+            throw new IllegalArgumentException("The max weight cannot be negative; found " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Retrieve the config cached under the key, loading it if it is missing or if its stamp has changed.
+     *
+     * @param key the cache key
+     * @param stamp identifies the version of the source, e.g. the last modified time and size of a file
+     * @param weight the weight of the entry if loaded, typically the size of the source in bytes
+     * @param loader loads the config if it is not cached
+     * @return the cached or loaded config
+     */
+    public Config get(Object key, Object stamp, long weight, Supplier<Config> loader) {
+
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if(entry != null && entry.stamp.equals(stamp)) {
+                hits.increment();
+                return entry.config;
+            }
+        }
+
+        misses.increment();
+        Config config = loader.get();
+        put(key, new Entry(stamp, weight, config));
+        return config;
+    }
+
+    /**
+     * Remove the entry for the given key
+     *
+     * @param key the cache key
+     * @return true if an entry was removed
+     */
+    public boolean invalidate(Object key) {
+        synchronized (entries) {
+            Entry entry = entries.remove(key);
+            if(entry != null) {
+                weight -= entry.weight;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Remove all entries with a key matching the predicate.
+     *
+     * @param predicate matching the keys to remove
+     * @return the number of removed entries
+     */
+    public int invalidateIf(Predicate<Object> predicate) {
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<Object, Entry> next = iterator.next();
+                if(predicate.test(next.getKey())) {
+                    weight -= next.getValue().weight;
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long weight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigCache{size=" + size() + ", weight=" + weight() + "/" + maxWeight
+                + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "}";
+    }
+
+    // -- private methods
+
+    private void put(Object key, Entry entry) {
+        if(entry.weight > maxWeight) {
+            // never cache entries that would evict everything else
+            invalidate(key);
+            return;
+        }
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if(previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entry.weight;
+
+            // evict the least recently used entries
+            Iterator<Entry> iterator = entries.values().iterator();
+            while(weight > maxWeight && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                weight -= eldest.weight;
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object stamp;
+        private final long weight;
+        private final Config config;
+
+        private Entry(Object stamp, long weight, Config config) {
+            this.stamp = Objects.requireNonNull(stamp, "stamp");
+            this.weight = Math.max(weight, 1);
+            this.config = config;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueFactory;
+import com.typesafe.config.ConfigValueType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares identical keys, values and subtrees across resolved configurations, e.g. the configurations of all nodes or
+ * tenants held by a process, most of which are merged from the same shared layers.
+ * <p>
+ * Each interned configuration is rebuilt bottom-up from canonical instances: the first occurrence of a value becomes
+ * its canonical instance and every equal value, i.e. a scalar of the same type and text or an object or list with the
+ * same keys and canonical children, is replaced by it. Objects and lists are only rebuilt if any of their keys or
+ * children were replaced, configurations without duplicates are returned as is. A shared value keeps the origin of its
+ * canonical instance and a rebuilt object or list keeps only the description of its origin, i.e. not its line number.
+ * <p>
+ * The interner retains the canonical instances until {@link #clear() cleared}. Its {@link #report() report} estimates
+ * the memory of the interned configurations with and without sharing.
+ */
+public final class ConfigInterner {
+
+    private static final ConfigRenderOptions RENDER_OPTIONS = ConfigRenderOptions.concise();
+    private static final String SCALAR_KEY = "value";
+
+    // rough shallow sizes of the values on a 64 bit JVM with compressed references
+    private static final long VALUE_BYTES = 32;
+    private static final long STRING_BYTES = 40;
+    private static final long OBJECT_BYTES = 64;
+    private static final long OBJECT_ENTRY_BYTES = 40;
+    private static final long LIST_BYTES = 40;
+    private static final long LIST_ELEMENT_BYTES = 8;
+
+    private final Map<Key, Canonical> values = new ConcurrentHashMap<>();
+    private final Map<Identity, Canonical> instances = new ConcurrentHashMap<>();
+    private final Map<String, String> keys = new ConcurrentHashMap<>();
+
+    private final LongAdder configs = new LongAdder();
+    private final LongAdder interned = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder internedKeys = new LongAdder();
+    private final LongAdder sharedKeys = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder retainedBytes = new LongAdder();
+
+    /**
+     * Intern a resolved configuration.
+     *
+     * @param config a resolved configuration
+     * @return an equal configuration built from canonical keys and values
+     */
+    public Config intern(Config config) {
+        if(!config.isResolved()) {
+            throw new IllegalArgumentException("Only a resolved configuration can be interned");
+        }
+        Canonical root = intern(config.root());
+        configs.increment();
+        bytes.add(root.bytes);
+        return ((ConfigObject) root.value).toConfig();
+    }
+
+    /**
+     * @return the estimated memory of the configurations interned so far
+     */
+    public Report report() {
+        return new Report(configs.sum(), interned.sum(), shared.sum(), values.size(),
+                internedKeys.sum(), sharedKeys.sum(), keys.size(), bytes.sum(), retainedBytes.sum());
+    }
+
+    /**
+     * Release the canonical instances and reset the report, configurations interned so far keep sharing their values.
+     */
+    public void clear() {
+        values.clear();
+        instances.clear();
+        keys.clear();
+        configs.reset();
+        interned.reset();
+        shared.reset();
+        internedKeys.reset();
+        sharedKeys.reset();
+        bytes.reset();
+        retainedBytes.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigInterner{" + report() + "}";
+    }
+
+    // -- private methods
+
+    private Canonical intern(ConfigValue value) {
+        // a canonical instance, e.g. a subtree of a layer shared by several configurations, is not traversed again
+        Canonical instance = instances.get(new Identity(value));
+        if(instance != null) {
+            interned.increment();
+            shared.increment();
+            return instance;
+        }
+
+        Key key;
+        ConfigValue candidate;
+        long shallowBytes;
+        long deepBytes;
+        if(value instanceof ConfigObject) {
+            ConfigObject object = (ConfigObject) value;
+            Map<String, ConfigValue> children = new LinkedHashMap<>();
+            Map<String, Identity> parts = new LinkedHashMap<>();
+            boolean rebuild = false;
+            shallowBytes = OBJECT_BYTES;
+            deepBytes = OBJECT_BYTES;
+            for(Map.Entry<String, ConfigValue> entry : object.entrySet()) {
+                String childKey = key(entry.getKey());
+                Canonical child = intern(entry.getValue());
+                children.put(childKey, child.value);
+                parts.put(childKey, new Identity(child.value));
+                rebuild |= childKey != entry.getKey() || child.value != entry.getValue();
+                shallowBytes += OBJECT_ENTRY_BYTES;
+                deepBytes += OBJECT_ENTRY_BYTES + child.bytes;
+            }
+            key = new Key(ConfigObject.class, parts);
+            candidate = rebuild ? ConfigValueFactory.fromMap(children, object.origin().description()) : object;
+        } else if(value instanceof ConfigList) {
+            ConfigList list = (ConfigList) value;
+            List<ConfigValue> children = new ArrayList<>(list.size());
+            List<Identity> parts = new ArrayList<>(list.size());
+            boolean rebuild = false;
+            shallowBytes = LIST_BYTES;
+            deepBytes = LIST_BYTES;
+            for(ConfigValue element : list) {
+                Canonical child = intern(element);
+                children.add(child.value);
+                parts.add(new Identity(child.value));
+                rebuild |= child.value != element;
+                shallowBytes += LIST_ELEMENT_BYTES;
+                deepBytes += LIST_ELEMENT_BYTES + child.bytes;
+            }
+            key = new Key(ConfigList.class, parts);
+            candidate = rebuild ? ConfigValueFactory.fromIterable(children, list.origin().description()) : list;
+        } else {
+            // numbers keep their original text, e.g. 1.0 parsed as an int, which is read as a string but not rendered
+            String rendered = value.valueType() == ConfigValueType.NUMBER
+                    ? value.atKey(SCALAR_KEY).getString(SCALAR_KEY)
+                    : value.render(RENDER_OPTIONS);
+            key = new Key(value.getClass(), rendered);
+            candidate = value;
+            shallowBytes = value.unwrapped() instanceof String
+                    ? VALUE_BYTES + STRING_BYTES + 2L * rendered.length()
+                    : VALUE_BYTES;
+            deepBytes = shallowBytes;
+        }
+
+        interned.increment();
+        Canonical created = new Canonical(candidate, deepBytes);
+        Canonical canonical = values.putIfAbsent(key, created);
+        if(canonical != null) {
+            shared.increment();
+            return canonical;
+        }
+        instances.put(new Identity(candidate), created);
+        retainedBytes.add(shallowBytes);
+        return created;
+    }
+
+    private String key(String key) {
+        internedKeys.increment();
+        String canonical = keys.putIfAbsent(key, key);
+        if(canonical != null) {
+            sharedKeys.increment();
+            return canonical;
+        }
+        retainedBytes.add(STRING_BYTES + 2L * key.length());
+        return key;
+    }
+
+    /**
+     * A canonical value with the estimated memory of its subtree without sharing.
+     */
+    private static final class Canonical {
+
+        private final ConfigValue value;
+        private final long bytes;
+
+        private Canonical(ConfigValue value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The type and the rendering of a scalar, or the keys and canonical children of an object or list.
+     */
+    private static final class Key {
+
+        private final Class<?> type;
+        private final Object parts;
+        private final int hash;
+
+        private Key(Class<?> type, Object parts) {
+            this.type = type;
+            this.parts = parts;
+            this.hash = 31 * type.hashCode() + parts.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key
+                    && hash == ((Key) other).hash
+                    && type == ((Key) other).type
+                    && parts.equals(((Key) other).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Compares canonical values by identity rather than by their deep equals.
+     */
+    private static final class Identity {
+
+        private final Object value;
+
+        private Identity(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Identity && value == ((Identity) other).value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+
+    /**
+     * Estimated memory of the interned configurations. The sizes are rough estimates of the shallow size of each value
+     * and key, meant for comparing the memory with and without sharing rather than as absolute numbers.
+     */
+    public static final class Report {
+
+        private final long configs;
+        private final long values;
+        private final long sharedValues;
+        private final long uniqueValues;
+        private final long keys;
+        private final long sharedKeys;
+        private final long uniqueKeys;
+        private final long bytes;
+        private final long retainedBytes;
+
+        private Report(long configs, long values, long sharedValues, long uniqueValues,
+                       long keys, long sharedKeys, long uniqueKeys, long bytes, long retainedBytes) {
+            this.configs = configs;
+            this.values = values;
+            this.sharedValues = sharedValues;
+            this.uniqueValues = uniqueValues;
+            this.keys = keys;
+            this.sharedKeys = sharedKeys;
+            this.uniqueKeys = uniqueKeys;
+            this.bytes = bytes;
+            this.retainedBytes = retainedBytes;
+        }
+
+        /**
+         * @return the number of interned configurations
+         */
+        public long configs() {
+            return configs;
+        }
+
+        /**
+         * @return the number of interned values, a shared subtree counting as a single value
+         */
+        public long values() {
+            return values;
+        }
+
+        /**
+         * @return the number of interned values replaced by an equal canonical value
+         */
+        public long sharedValues() {
+            return sharedValues;
+        }
+
+        /**
+         * @return the number of canonical values
+         */
+        public long uniqueValues() {
+            return uniqueValues;
+        }
+
+        public long keys() {
+            return keys;
+        }
+
+        public long sharedKeys() {
+            return sharedKeys;
+        }
+
+        public long uniqueKeys() {
+            return uniqueKeys;
+        }
+
+        /**
+         * @return the estimated memory of the interned configurations without sharing
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the estimated memory of the canonical keys and values
+         */
+        public long retainedBytes() {
+            return retainedBytes;
+        }
+
+        /**
+         * @return the estimated memory saved by sharing
+         */
+        public long savedBytes() {
+            return Math.max(bytes - retainedBytes, 0);
+        }
+
+        @Override
+        public String toString() {
+            return "configs=" + configs + ", values=" + values + ", sharedValues=" + sharedValues
+                    + ", uniqueValues=" + uniqueValues + ", keys=" + keys + ", sharedKeys=" + sharedKeys
+                    + ", bytes=" + bytes + ", retainedBytes=" + retainedBytes + ", savedBytes=" + savedBytes();
+        }
+    }
+}
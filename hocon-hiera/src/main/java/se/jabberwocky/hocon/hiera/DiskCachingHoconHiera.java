@@ -0,0 +1,299 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HOCON Hiera decorator persisting the merged configuration of each set of facts in a cache directory that
+ * survives restarts and may be shared by several processes on the same host.
+ * <p>
+ * The cache is content addressed: each entry is a {@link HieraSnapshot#merged(HoconHiera, Map) merged snapshot}, i.e.
+ * the unresolved merge returned by {@link HoconHiera#config(Map)}, stored under the
+ * {@link HoconHiera#fingerprint(Map) fingerprint} of the facts, i.e. a hash of the paths and contents of all layers,
+ * so a changed layer simply results in a new entry and a hit never requires parsing or merging a layer. Entries are
+ * written to a temporary file that is atomically moved into place, readers therefore see either a complete entry or
+ * none. The directory is bounded by the total size of the entries and the least recently used entries are deleted
+ * first. Entries are never resolved, substitutions are left to the caller, so an entry depends on the layers only
+ * and not on the system properties or environment of the process that wrote it.
+ */
+public class DiskCachingHoconHiera implements HoconHiera {
+
+    private static final Logger LOGGER = Logger.getLogger(DiskCachingHoconHiera.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final String SUFFIX = ".snapshot";
+
+    private final HoconHiera hiera;
+    private final Path directory;
+    private final long maxBytes;
+    private final boolean origins;
+
+    private final InFlight<Map<String, String>, Config> inFlight = new InFlight<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DiskCachingHoconHiera(HoconHiera hiera, Path directory) {
+        this(hiera, directory, DEFAULT_MAX_BYTES, false);
+    }
+
+    /**
+     * @param hiera the decorated hiera
+     * @param directory the cache directory, created if missing
+     * @param maxBytes the maximum total size of the cached entries
+     * @param origins true to keep the origin of each value in the cached entries
+     */
+    public DiskCachingHoconHiera(HoconHiera hiera, Path directory, long maxBytes, boolean origins) {
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("The max bytes must not be negative; found " + maxBytes);
+        }
+        this.hiera = hiera;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.origins = origins;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create the cache directory '" + directory + "'", e);
+        }
+    }
+
+    @Override
+    public Config hiera() {
+        return hiera.hiera();
+    }
+
+    @Override
+    public Hierarchy hierarchy() {
+        return hiera.hierarchy();
+    }
+
+    @Override
+    public Config config(String path) {
+        return hiera.config(path);
+    }
+
+    @Override
+    public String fingerprint(String path) {
+        return hiera.fingerprint(path);
+    }
+
+    @Override
+    public long size(String path) {
+        return hiera.size(path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return hiera.exists(path);
+    }
+
+    @Override
+    public HieraMetrics metrics() {
+        return hiera.metrics();
+    }
+
+    @Override
+    public Config merge(List<String> paths, List<Config> layers) {
+        return hiera.merge(paths, layers);
+    }
+
+    /**
+     * Return the unresolved configuration from the cache directory, or merge and cache it.
+     */
+    @Override
+    public Config config(Map<String, String> facts) {
+        long start = System.nanoTime();
+        String key = hiera.fingerprint(facts);
+        Path file = directory.resolve(key + SUFFIX);
+
+        HieraSnapshot cached = read(file);
+        if(cached != null) {
+            // misses are reported by the decorated hiera
+            hits.increment();
+            metrics().lookup(System.nanoTime() - start);
+            return cached.config();
+        }
+
+        misses.increment();
+        HieraSnapshot snapshot = HieraSnapshot.merged(hiera, facts);
+
+        // a layer changed while merging, the snapshot may not match the key
+        if(key.equals(hiera.fingerprint(facts))) {
+            write(file, snapshot);
+        }
+        return snapshot.config();
+    }
+
+    /**
+     * Retrieve the configuration asynchronously through the cache directory, concurrent requests for the same facts
+     * share a single lookup. Facts are the same if the facts referenced by the hierarchy are.
+     */
+    @Override
+    public CompletableFuture<Config> configAsync(Map<String, String> facts, Executor executor) {
+        return CompletableFuture.supplyAsync(this::hierarchy, executor).thenCompose(hierarchy ->
+                inFlight.get(hierarchy.referenced(facts), () -> CompletableFuture.supplyAsync(() -> config(facts),
+                        executor)));
+    }
+
+    /**
+     * Delete all cached entries.
+     */
+    public void invalidateAll() {
+        for(Path file : entries()) {
+            delete(file);
+        }
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "DiskCachingHoconHiera{directory=" + directory
+                + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "}";
+    }
+
+    // -- private methods
+
+    private HieraSnapshot read(Path file) {
+        try (InputStream stream = Files.newInputStream(file)) {
+            HieraSnapshot snapshot = HieraSnapshot.read(stream);
+            touch(file);
+            return snapshot;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Deleting the unreadable cache entry '" + file + "'", e);
+            delete(file);
+            return null;
+        }
+    }
+
+    private void write(Path file, HieraSnapshot snapshot) {
+        if(maxBytes == 0) {
+            return;
+        }
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temp)) {
+                snapshot.write(stream, origins);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            evict();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not write the cache entry '" + file + "'", e);
+        } finally {
+            if(temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    /**
+     * The modification time of an entry is its last use, evicting by it is shared by all processes using the cache.
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not touch the cache entry '" + file + "'", e);
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        for(Path file : entries()) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                entries.add(new Entry(file, attributes.lastModifiedTime().toMillis(), attributes.size()));
+                total += attributes.size();
+            } catch (NoSuchFileException e) {
+                // evicted by another process
+            }
+        }
+        if(total <= maxBytes) {
+            return;
+        }
+
+        entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        for(Entry entry : entries) {
+            if(total <= maxBytes) {
+                break;
+            }
+            delete(entry.file);
+            total -= entry.size;
+            evictions.increment();
+        }
+    }
+
+    private List<Path> entries() {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not list the cache directory '" + directory + "'", e);
+        }
+        return files;
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not delete '" + file + "'", e);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Path file;
+        private final long lastUsed;
+        private final long size;
+
+        private Entry(Path file, long lastUsed, long size) {
+            this.file = file;
+            this.lastUsed = lastUsed;
+            this.size = size;
+        }
+    }
+}
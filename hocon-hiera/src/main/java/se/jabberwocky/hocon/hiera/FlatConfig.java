@@ -0,0 +1,286 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigMemorySize;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of a resolved configuration indexed by path for hot reads, returned by
+ * {@link HoconHiera#flat(Map)}.
+ * <p>
+ * Every path, of objects as well as of values, is indexed up front in its canonical form as joined by
+ * {@link ConfigUtil#joinPath(List)}, i.e. a read is a single hash lookup. Reads of paths in another form, of missing
+ * paths and reads requiring a conversion are delegated to {@link #config()}.
+ */
+public final class FlatConfig {
+
+    private final Config config;
+    private final Map<String, Entry> entries;
+
+    private FlatConfig(Config config) {
+        this.config = config;
+        this.entries = new HashMap<>();
+        index(config.root(), new ArrayList<>());
+    }
+
+    /**
+     * @param config a resolved configuration
+     * @return the flattened snapshot of the configuration
+     */
+    public static FlatConfig of(Config config) {
+        if(!config.isResolved()) {
+            throw new IllegalArgumentException("Only a resolved configuration can be flattened");
+        }
+        return new FlatConfig(config);
+    }
+
+    /**
+     * @return the flattened configuration, e.g. to merge or resolve other configurations with
+     */
+    public Config config() {
+        return config;
+    }
+
+    /**
+     * @return the number of indexed paths
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // -- indexed paths
+
+    public boolean hasPath(String path) {
+        Entry entry = entries.get(path);
+        return entry != null ? entry.type != ConfigValueType.NULL : config.hasPath(path);
+    }
+
+    public boolean hasPathOrNull(String path) {
+        return entries.containsKey(path) || config.hasPathOrNull(path);
+    }
+
+    public boolean getIsNull(String path) {
+        Entry entry = entries.get(path);
+        return entry != null ? entry.type == ConfigValueType.NULL : config.getIsNull(path);
+    }
+
+    public boolean getBoolean(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.type == ConfigValueType.BOOLEAN
+                ? (Boolean) entry.unwrapped
+                : config.getBoolean(path);
+    }
+
+    public Number getNumber(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.type == ConfigValueType.NUMBER
+                ? (Number) entry.unwrapped
+                : config.getNumber(path);
+    }
+
+    public int getInt(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.unwrapped instanceof Integer
+                ? (Integer) entry.unwrapped
+                : config.getInt(path);
+    }
+
+    public long getLong(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && (entry.unwrapped instanceof Integer || entry.unwrapped instanceof Long)
+                ? ((Number) entry.unwrapped).longValue()
+                : config.getLong(path);
+    }
+
+    public double getDouble(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.type == ConfigValueType.NUMBER
+                ? ((Number) entry.unwrapped).doubleValue()
+                : config.getDouble(path);
+    }
+
+    public String getString(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.type == ConfigValueType.STRING
+                ? (String) entry.unwrapped
+                : config.getString(path);
+    }
+
+    public ConfigObject getObject(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.type == ConfigValueType.OBJECT
+                ? (ConfigObject) entry.value
+                : config.getObject(path);
+    }
+
+    /**
+     * Return the flattened snapshot of a sub-configuration, flattened once on first read.
+     */
+    public FlatConfig getConfig(String path) {
+        Entry entry = entries.get(path);
+        if(entry == null || entry.type != ConfigValueType.OBJECT) {
+            return new FlatConfig(config.getConfig(path));
+        }
+        FlatConfig child = entry.child;
+        if(child == null) {
+            child = entry.child = new FlatConfig(((ConfigObject) entry.value).toConfig());
+        }
+        return child;
+    }
+
+    public Object getAnyRef(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.unwrapped != null
+                ? entry.unwrapped
+                : config.getAnyRef(path);
+    }
+
+    public ConfigValue getValue(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.type != ConfigValueType.NULL ? entry.value : config.getValue(path);
+    }
+
+    public Long getBytes(String path) {
+        Entry entry = entries.get(path);
+        if(entry == null) {
+            return config.getBytes(path);
+        }
+        Long bytes = entry.bytes;
+        if(bytes == null) {
+            bytes = entry.bytes = config.getBytes(path);
+        }
+        return bytes;
+    }
+
+    public ConfigMemorySize getMemorySize(String path) {
+        return ConfigMemorySize.ofBytes(getBytes(path));
+    }
+
+    public long getDuration(String path, TimeUnit unit) {
+        return unit.convert(getDuration(path).toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public Duration getDuration(String path) {
+        Entry entry = entries.get(path);
+        if(entry == null) {
+            return config.getDuration(path);
+        }
+        Duration duration = entry.duration;
+        if(duration == null) {
+            duration = entry.duration = config.getDuration(path);
+        }
+        return duration;
+    }
+
+    public ConfigList getList(String path) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.type == ConfigValueType.LIST
+                ? (ConfigList) entry.value
+                : config.getList(path);
+    }
+
+    public List<Boolean> getBooleanList(String path) {
+        return config.getBooleanList(path);
+    }
+
+    public List<Number> getNumberList(String path) {
+        return config.getNumberList(path);
+    }
+
+    public List<Integer> getIntList(String path) {
+        return config.getIntList(path);
+    }
+
+    public List<Long> getLongList(String path) {
+        return config.getLongList(path);
+    }
+
+    public List<Double> getDoubleList(String path) {
+        return config.getDoubleList(path);
+    }
+
+    public List<String> getStringList(String path) {
+        return config.getStringList(path);
+    }
+
+    public List<? extends ConfigObject> getObjectList(String path) {
+        return config.getObjectList(path);
+    }
+
+    public List<? extends Config> getConfigList(String path) {
+        return config.getConfigList(path);
+    }
+
+    public List<? extends Object> getAnyRefList(String path) {
+        return config.getAnyRefList(path);
+    }
+
+    public List<Long> getBytesList(String path) {
+        return config.getBytesList(path);
+    }
+
+    public List<ConfigMemorySize> getMemorySizeList(String path) {
+        return config.getMemorySizeList(path);
+    }
+
+    public List<Long> getDurationList(String path, TimeUnit unit) {
+        return config.getDurationList(path, unit);
+    }
+
+    public List<Duration> getDurationList(String path) {
+        return config.getDurationList(path);
+    }
+
+    @Override
+    public String toString() {
+        return "FlatConfig{paths=" + size() + "}";
+    }
+
+    // -- private methods
+
+    private void index(ConfigObject object, List<String> prefix) {
+        for(Map.Entry<String, ConfigValue> child : object.entrySet()) {
+            prefix.add(child.getKey());
+            entries.put(ConfigUtil.joinPath(prefix), new Entry(child.getValue()));
+            if(child.getValue() instanceof ConfigObject) {
+                index((ConfigObject) child.getValue(), prefix);
+            }
+            prefix.remove(prefix.size() - 1);
+        }
+    }
+
+    /**
+     * The value of a path with its scalar value unwrapped up front and its conversions parsed on first read. The
+     * conversions are immutable, racing reads at worst parse them twice.
+     */
+    private static final class Entry {
+
+        private final ConfigValue value;
+        private final ConfigValueType type;
+        private final Object unwrapped;
+        private volatile Duration duration;
+        private volatile Long bytes;
+        private volatile FlatConfig child;
+
+        private Entry(ConfigValue value) {
+            this.value = value;
+            this.type = value.valueType();
+            this.unwrapped = type != ConfigValueType.OBJECT && type != ConfigValueType.LIST ? value.unwrapped() : null;
+        }
+    }
+}
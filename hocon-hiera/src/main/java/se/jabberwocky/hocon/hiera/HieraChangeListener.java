@@ -0,0 +1,18 @@
+package se.jabberwocky.hocon.hiera;
+
+import java.util.Set;
+
+/**
+ * Listener notified when files in a hiera have changed.
+ */
+@FunctionalInterface
+public interface HieraChangeListener {
+
+    /**
+     * Called after one or more files have been created, modified or deleted.
+     *
+     * @param paths the changed paths relative to the hiera root, e.g. <code>node/dtcmeawsp01.conf</code>
+     */
+    void changed(Set<String> paths);
+
+}
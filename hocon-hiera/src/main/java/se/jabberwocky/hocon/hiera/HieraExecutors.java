@@ -0,0 +1,46 @@
+package se.jabberwocky.hocon.hiera;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Executors used for loading hiera layers concurrently.
+ */
+public final class HieraExecutors {
+
+    private static final Logger LOGGER = Logger.getLogger(HieraExecutors.class.getName());
+
+    private HieraExecutors() {
+    }
+
+    /**
+     * Return the default executor for blocking hiera I/O, i.e. an executor starting a virtual thread per task when
+     * running on a JDK supporting virtual threads and the common fork-join pool otherwise.
+     *
+     * @return the shared default executor
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    // -- private methods
+
+    private static Executor createDefaultExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            Executor executor = (Executor) method.invoke(null);
+            LOGGER.fine("Using virtual threads for hiera I/O");
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.fine("Virtual threads not available, using the common fork-join pool for hiera I/O");
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+    private static final class DefaultExecutor {
+        private static final Executor INSTANCE = createDefaultExecutor();
+    }
+}
@@ -0,0 +1,53 @@
+package se.jabberwocky.hocon.hiera;
+
+/**
+ * Receives the metrics of hiera operations, e.g. to forward them to the metrics library of the application. All
+ * methods are called on the hot path of configuration lookups and must be fast and thread safe; the default methods
+ * ignore the events.
+ *
+ * @see HieraStats the default implementation
+ */
+public interface HieraMetrics {
+
+    /**
+     * Metrics ignoring all events.
+     */
+    HieraMetrics NONE = new HieraMetrics() {
+    };
+
+    /**
+     * A layer has been looked up, reported by the hieras caching their layers, e.g. {@link HoconHieraFileSystem}.
+     *
+     * @param path the path of the layer
+     * @param found false if the layer does not exist
+     */
+    default void layer(String path, boolean found) {
+    }
+
+    /**
+     * A layer has been parsed, i.e. it was not cached.
+     *
+     * @param path the path of the layer
+     * @param nanos the time spent parsing in nanoseconds
+     */
+    default void parsed(String path, long nanos) {
+    }
+
+    /**
+     * The layers of a hierarchy have been merged.
+     *
+     * @param layers the number of merged layers
+     * @param nanos the time spent merging in nanoseconds
+     */
+    default void merged(int layers, long nanos) {
+    }
+
+    /**
+     * The configuration of a set of facts has been looked up. Each lookup is reported once, by the hiera answering
+     * it, i.e. a caching decorator reports its hits and the decorated hiera the misses.
+     *
+     * @param nanos the time of the full lookup in nanoseconds
+     */
+    default void lookup(long nanos) {
+    }
+}
@@ -0,0 +1,328 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigResolveOptions;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the resolved configuration of subscribed sets of facts whenever a layer contributing to it changes.
+ * Register the publisher as a listener of a {@link ReloadingHoconHiera} to be notified of changed layers.
+ * <p>
+ * All subscribers of the same facts share a single topic and each change is resolved once per topic. Facts are the
+ * same if the facts referenced by the hierarchy are, e.g. a client id does not prevent sharing a topic; a topic keeps
+ * resolving with the facts of its first subscriber even if a changed hierarchy references further facts. Changes are
+ * debounced per topic, skipped without resolving if the {@link HoconHiera#fingerprint(Map) fingerprint} of the facts
+ * is unchanged, and only published if the content of the resolved configuration has changed. Each subscription
+ * receives at most as many configurations as requested; while there is no demand the configurations are conflated
+ * and only the latest one is delivered. Configurations are resolved against their layers only, not the system
+ * properties or the environment, the same as rendered by {@link HoconHieraTool}.
+ */
+public class HieraPublisher implements HieraChangeListener, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(HieraPublisher.class.getName());
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 100;
+
+    private final HoconHiera hiera;
+    private final Executor executor;
+    private final long debounceMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Map<String, String>, Topic> topics = new ConcurrentHashMap<>();
+
+    public HieraPublisher(HoconHiera hiera) {
+        this(hiera, HieraExecutors.defaultExecutor(), DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * @param hiera the hiera to resolve configurations with
+     * @param executor used for resolving configurations and delivering them to subscribers, must not run the tasks
+     *                 on the submitting thread
+     * @param debounceMillis the time to wait for further changes before a topic is resolved again
+     */
+    public HieraPublisher(HoconHiera hiera, Executor executor, long debounceMillis) {
+        this.hiera = hiera;
+        this.executor = executor;
+        this.debounceMillis = debounceMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hiera-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Subscribe to the configuration of a set of facts. The subscriber receives the current configuration, once
+     * resolved, followed by each changed configuration.
+     *
+     * @param facts used to resolve the configuration
+     * @param subscriber the subscriber
+     * @return the subscription
+     */
+    public HieraSubscription subscribe(Map<String, String> facts, HieraSubscriber subscriber) {
+        Map<String, String> copy = Collections.unmodifiableMap(new HashMap<>(facts));
+        Map<String, String> key = key(copy);
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+
+        while(!subscription.cancelled) {
+            AtomicBoolean created = new AtomicBoolean();
+            Topic topic = topics.computeIfAbsent(key, k -> {
+                created.set(true);
+                return new Topic(k, copy);
+            });
+
+            synchronized (topic) {
+                if(topic.closed) {
+                    // the last subscriber cancelled concurrently
+                    continue;
+                }
+                // cancel() sets the flag before reading the topic, i.e. either sees the topic or is seen here
+                subscription.topic = topic;
+                if(subscription.cancelled) {
+                    break;
+                }
+                topic.subscriptions.add(subscription);
+                if(topic.config != null) {
+                    subscription.offer(topic.config);
+                }
+            }
+            if(created.get()) {
+                schedule(topic, 0);
+            }
+            break;
+        }
+        return subscription;
+    }
+
+    /**
+     * Resolve the topics depending on any of the changed paths again, or all topics if the hiera config has changed.
+     *
+     * @param paths the changed paths
+     */
+    @Override
+    public void changed(Set<String> paths) {
+        boolean all = paths.contains(HoconHiera.HIERA_CONFIG_FILE);
+        for(Topic topic : topics.values()) {
+            List<String> layers = topic.paths;
+            // the layers of a topic not resolved yet are unknown
+            if(all || layers == null || layers.stream().anyMatch(paths::contains)) {
+                schedule(topic, debounceMillis);
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct sets of facts subscribed to
+     */
+    public int topics() {
+        return topics.size();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for(Topic topic : topics.values()) {
+            synchronized (topic) {
+                topic.closed = true;
+                topic.subscriptions.clear();
+            }
+        }
+        topics.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "HieraPublisher{topics=" + topics() + "}";
+    }
+
+    // -- private methods
+
+    private Map<String, String> key(Map<String, String> facts) {
+        try {
+            return hiera.hierarchy().referenced(facts);
+        } catch (RuntimeException e) {
+            // the broken hiera config is reported to the subscriber when the topic is resolved
+            return facts;
+        }
+    }
+
+    private void schedule(Topic topic, long delayMillis) {
+        if(topic.scheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> executor.execute(() -> refresh(topic)), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refresh(Topic topic) {
+        synchronized (topic.refreshLock) {
+            // changes from now on schedule another refresh
+            topic.scheduled.set(false);
+            if(topic.closed) {
+                return;
+            }
+            try {
+                // assigned before reading the layers, changes from now on are not missed
+                topic.paths = hiera.hierarchy().paths(topic.facts);
+                String fingerprint = hiera.fingerprint(topic.facts);
+                if(fingerprint.equals(topic.fingerprint)) {
+                    return;
+                }
+                Config config = hiera.config(topic.facts).resolve(ConfigResolveOptions.noSystem());
+                String hash = Digests.sha256(config.root().render(ConfigRenderOptions.concise()));
+
+                topic.fingerprint = fingerprint;
+                synchronized (topic) {
+                    if(hash.equals(topic.hash)) {
+                        return;
+                    }
+                    topic.hash = hash;
+                    topic.config = config;
+                    topic.subscriptions.forEach(subscription -> subscription.offer(config));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not resolve the configuration of " + topic.facts, e);
+                List<Subscription> subscriptions;
+                synchronized (topic) {
+                    subscriptions = new ArrayList<>(topic.subscriptions);
+                }
+                subscriptions.forEach(subscription -> subscription.error(e));
+            }
+        }
+    }
+
+    private void cancel(Subscription subscription) {
+        Topic topic = subscription.topic;
+        if(topic == null) {
+            // cancelled before being subscribed to a topic
+            return;
+        }
+        synchronized (topic) {
+            topic.subscriptions.remove(subscription);
+            if(topic.subscriptions.isEmpty() && !topic.closed) {
+                topic.closed = true;
+                topics.remove(topic.key, topic);
+            }
+        }
+    }
+
+    /**
+     * The subscriptions of a set of facts and the configuration last published to them.
+     */
+    private static final class Topic {
+
+        private final Map<String, String> key;
+        private final Map<String, String> facts;
+        private final Object refreshLock = new Object();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        // the paths of the layers, null until first resolved
+        private volatile List<String> paths;
+        private volatile String fingerprint;
+        private String hash;
+        private Config config;
+        private volatile boolean closed;
+
+        private Topic(Map<String, String> key, Map<String, String> facts) {
+            this.key = key;
+            this.facts = facts;
+        }
+    }
+
+    /**
+     * Delivers the latest offered configuration as far as requested, serializing the calls to the subscriber.
+     */
+    private final class Subscription implements HieraSubscription {
+
+        private final HieraSubscriber subscriber;
+        private volatile Topic topic;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicReference<Config> pending = new AtomicReference<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        private Subscription(HieraSubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                throw new IllegalArgumentException("The number of requested configurations must be positive; found "
+                        + n);
+            }
+            demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            pending.set(null);
+            HieraPublisher.this.cancel(this);
+        }
+
+        private void offer(Config config) {
+            pending.set(config);
+            drain();
+        }
+
+        private void error(Throwable throwable) {
+            error.set(throwable);
+            drain();
+        }
+
+        private void drain() {
+            if(work.getAndIncrement() == 0) {
+                executor.execute(this::deliver);
+            }
+        }
+
+        private void deliver() {
+            int missed = 1;
+            do {
+                Throwable throwable = error.getAndSet(null);
+                if(throwable != null && !cancelled) {
+                    call(() -> subscriber.onError(throwable));
+                }
+                while(!cancelled && demand.get() > 0) {
+                    Config config = pending.getAndSet(null);
+                    if(config == null) {
+                        break;
+                    }
+                    if(demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    call(() -> subscriber.onNext(config));
+                }
+                missed = work.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        private void call(Runnable callback) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "The hiera subscriber " + subscriber + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigOrigin;
+import com.typesafe.config.ConfigOriginFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigResolveOptions;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration of a set of facts stored together with the fingerprints of the layers it was merged from, either
+ * {@link #of(HoconHiera, Map) resolved} or the {@link #merged(HoconHiera, Map) unresolved merge}. Snapshots are
+ * written in a compact binary format that is loaded considerably faster than parsing the HOCON text of the layers; a
+ * snapshot is only {@link #isCurrent(HoconHiera) current} as long as the fingerprints of its layers remain the same.
+ * <p>
+ * The binary format is
+ * <pre>
+ * int      magic number 0x48534e50
+ * int      format version
+ * boolean  origins included
+ * int      number of layers, followed by the path and fingerprint string of each layer
+ * boolean  resolved, i.e. without substitutions
+ * int      number of strings, followed by each string as a length prefixed UTF-8 byte array
+ * value    the root object
+ * </pre>
+ * where all keys and string values are interned in the string table and each value is a type tag followed by its
+ * content and, if included, the string table index of its origin description. A configuration with substitutions is
+ * stored as its rendered HOCON text instead of the string table and root object, without origins, and parsed again
+ * when read. Lengths and counts read from a snapshot are never trusted to size buffers up front, i.e. a truncated or
+ * corrupted snapshot fails to read rather than exhausting the heap.
+ */
+public final class HieraSnapshot {
+
+    public static final int MAGIC = 0x48534e50;
+    public static final int VERSION = 1;
+
+    private static final String ORIGIN = "hiera snapshot";
+    private static final ConfigRenderOptions UNRESOLVED = ConfigRenderOptions.defaults()
+            .setOriginComments(false)
+            .setComments(false)
+            .setJson(false)
+            .setFormatted(false);
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte OBJECT = 7;
+    private static final byte LIST = 8;
+
+    // the largest buffer or collection allocated before reading its content
+    private static final int MAX_PRESIZE = 8192;
+
+    private final Map<String, String> layers;
+    private final Config config;
+
+    private HieraSnapshot(Map<String, String> layers, Config config) {
+        this.layers = Collections.unmodifiableMap(layers);
+        this.config = config;
+    }
+
+    /**
+     * Create a snapshot of the resolved configuration for a set of facts. Substitutions are resolved within the
+     * configuration only, i.e. not against system properties or environment variables, so that a stored snapshot
+     * does not depend on the process that created it.
+     *
+     * @param hiera the hiera
+     * @param facts used to resolve the configuration
+     * @return a snapshot of the resolved configuration
+     * @throws com.typesafe.config.ConfigException.UnresolvedSubstitution if the configuration cannot be resolved
+     */
+    public static HieraSnapshot of(HoconHiera hiera, Map<String, String> facts) {
+        return new HieraSnapshot(layers(hiera, facts), hiera.config(facts).resolve(ConfigResolveOptions.noSystem()));
+    }
+
+    /**
+     * Create a snapshot of the unresolved configuration for a set of facts, i.e. as returned by
+     * {@link HoconHiera#config(Map)}, keeping its substitutions for the caller to resolve.
+     *
+     * @param hiera the hiera
+     * @param facts used to resolve the configuration
+     * @return a snapshot of the unresolved configuration
+     */
+    public static HieraSnapshot merged(HoconHiera hiera, Map<String, String> facts) {
+        return new HieraSnapshot(layers(hiera, facts), hiera.config(facts));
+    }
+
+    /**
+     * @return the configuration, resolved unless the snapshot was {@link #merged(HoconHiera, Map) merged}
+     */
+    public Config config() {
+        return config;
+    }
+
+    /**
+     * @return the fingerprint of each layer of the configuration by path, starting with the hiera config
+     */
+    public Map<String, String> layers() {
+        return layers;
+    }
+
+    /**
+     * @param hiera the hiera the snapshot was created from
+     * @return true if none of the layers of the snapshot have changed
+     */
+    public boolean isCurrent(HoconHiera hiera) {
+        for(Map.Entry<String, String> layer : layers.entrySet()) {
+            if(!layer.getValue().equals(hiera.fingerprint(layer.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the snapshot in the binary snapshot format.
+     *
+     * @param stream the stream to write to, not closed
+     * @param origins true to include the origin of each value
+     */
+    public void write(OutputStream stream, boolean origins) {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(origins);
+
+            out.writeInt(layers.size());
+            for(Map.Entry<String, String> layer : layers.entrySet()) {
+                writeString(out, layer.getKey());
+                writeString(out, layer.getValue());
+            }
+
+            boolean resolved = config.isResolved();
+            out.writeBoolean(resolved);
+            if(!resolved) {
+                writeString(out, config.root().render(UNRESOLVED));
+                out.flush();
+                return;
+            }
+
+            Writer writer = new Writer(origins);
+            writer.intern(config.root());
+            out.writeInt(writer.strings.size());
+            for(String string : writer.strings.keySet()) {
+                writeString(out, string);
+            }
+
+            writer.write(out, config.root());
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the hiera snapshot", e);
+        }
+    }
+
+    /**
+     * Read a snapshot written in the binary snapshot format.
+     *
+     * @param stream the stream to read from, not closed
+     * @return the snapshot
+     */
+    public static HieraSnapshot read(InputStream stream) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a hiera snapshot");
+            }
+            int version = in.readInt();
+            if(version != VERSION) {
+                throw new IOException("Unsupported hiera snapshot version " + version);
+            }
+            boolean origins = in.readBoolean();
+
+            int layerCount = readCount(in);
+            Map<String, String> layers = new LinkedHashMap<>(presize(layerCount) * 2);
+            for(int i = 0; i < layerCount; i++) {
+                layers.put(readString(in), readString(in));
+            }
+
+            if(!in.readBoolean()) {
+                return new HieraSnapshot(layers, ConfigFactory.parseString(readString(in),
+                        ConfigParseOptions.defaults().setOriginDescription(ORIGIN)));
+            }
+
+            int stringCount = readCount(in);
+            List<String> strings = new ArrayList<>(presize(stringCount));
+            for(int i = 0; i < stringCount; i++) {
+                strings.add(readString(in));
+            }
+
+            Reader reader = new Reader(strings.toArray(new String[0]), origins);
+            ConfigValue root = reader.read(in);
+            if(!(root instanceof ConfigObject)) {
+                throw new IOException("The root of a hiera snapshot must be an object");
+            }
+            return new HieraSnapshot(layers, ((ConfigObject) root).toConfig());
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Could not read the hiera snapshot", e);
+        }
+    }
+
+    // -- private methods
+
+    /**
+     * The fingerprint of each layer of the configuration by path, starting with the hiera config.
+     */
+    private static Map<String, String> layers(HoconHiera hiera, Map<String, String> facts) {
+        Map<String, String> layers = new LinkedHashMap<>();
+        layers.put(HoconHiera.HIERA_CONFIG_FILE, hiera.fingerprint(HoconHiera.HIERA_CONFIG_FILE));
+        for(String path : hiera.hierarchy().paths(facts)) {
+            layers.put(path, hiera.fingerprint(path));
+        }
+        return layers;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        if(length <= MAX_PRESIZE) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // grow the buffer with the bytes actually read, a corrupted length ends in an EOFException
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PRESIZE);
+        byte[] buffer = new byte[MAX_PRESIZE];
+        int remaining = length;
+        while(remaining > 0) {
+            int chunk = Math.min(remaining, buffer.length);
+            in.readFully(buffer, 0, chunk);
+            bytes.write(buffer, 0, chunk);
+            remaining -= chunk;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if(count < 0) {
+            throw new IOException("Corrupt hiera snapshot, found the negative length " + count);
+        }
+        return count;
+    }
+
+    private static int presize(int count) {
+        return Math.min(count, MAX_PRESIZE);
+    }
+
+    /**
+     * Interns all strings of a config tree and writes the tree.
+     */
+    private static final class Writer {
+
+        private final boolean origins;
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+
+        private Writer(boolean origins) {
+            this.origins = origins;
+        }
+
+        private void intern(ConfigValue value) {
+            if(origins) {
+                index(value.origin().description());
+            }
+            switch(value.valueType()) {
+                case OBJECT:
+                    for(Map.Entry<String, ConfigValue> entry : ((ConfigObject) value).entrySet()) {
+                        index(entry.getKey());
+                        intern(entry.getValue());
+                    }
+                    break;
+                case LIST:
+                    ((ConfigList) value).forEach(this::intern);
+                    break;
+                case STRING:
+                    index((String) value.unwrapped());
+                    break;
+                default:
+            }
+        }
+
+        private int index(String string) {
+            Integer index = strings.get(string);
+            if(index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+            return index;
+        }
+
+        private void write(DataOutputStream out, ConfigValue value) throws IOException {
+            switch(value.valueType()) {
+                case NULL:
+                    out.writeByte(NULL);
+                    break;
+                case BOOLEAN:
+                    out.writeByte((Boolean) value.unwrapped() ? TRUE : FALSE);
+                    break;
+                case NUMBER:
+                    Number number = (Number) value.unwrapped();
+                    if(number instanceof Integer) {
+                        out.writeByte(INT);
+                        out.writeInt(number.intValue());
+                    } else if(number instanceof Long) {
+                        out.writeByte(LONG);
+                        out.writeLong(number.longValue());
+                    } else {
+                        out.writeByte(DOUBLE);
+                        out.writeDouble(number.doubleValue());
+                    }
+                    break;
+                case STRING:
+                    out.writeByte(STRING);
+                    out.writeInt(strings.get((String) value.unwrapped()));
+                    break;
+                case OBJECT:
+                    ConfigObject object = (ConfigObject) value;
+                    out.writeByte(OBJECT);
+                    out.writeInt(object.size());
+                    for(Map.Entry<String, ConfigValue> entry : object.entrySet()) {
+                        out.writeInt(strings.get(entry.getKey()));
+                        write(out, entry.getValue());
+                    }
+                    break;
+                case LIST:
+                    ConfigList list = (ConfigList) value;
+                    out.writeByte(LIST);
+                    out.writeInt(list.size());
+                    for(ConfigValue element : list) {
+                        write(out, element);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected value type " + value.valueType());
+            }
+            if(origins) {
+                out.writeInt(strings.get(value.origin().description()));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a config tree from the interned strings.
+     */
+    private static final class Reader {
+
+        private final String[] strings;
+        private final boolean origins;
+        private final Map<String, ConfigOrigin> descriptions = new HashMap<>();
+
+        private Reader(String[] strings, boolean origins) {
+            this.strings = strings;
+            this.origins = origins;
+        }
+
+        private ConfigValue read(DataInputStream in) throws IOException {
+            byte tag = in.readByte();
+            ConfigValue value;
+            switch(tag) {
+                case NULL:
+                    value = ConfigValueFactory.fromAnyRef(null, ORIGIN);
+                    break;
+                case TRUE:
+                    value = ConfigValueFactory.fromAnyRef(Boolean.TRUE, ORIGIN);
+                    break;
+                case FALSE:
+                    value = ConfigValueFactory.fromAnyRef(Boolean.FALSE, ORIGIN);
+                    break;
+                case INT:
+                    value = ConfigValueFactory.fromAnyRef(in.readInt(), ORIGIN);
+                    break;
+                case LONG:
+                    value = ConfigValueFactory.fromAnyRef(in.readLong(), ORIGIN);
+                    break;
+                case DOUBLE:
+                    value = ConfigValueFactory.fromAnyRef(in.readDouble(), ORIGIN);
+                    break;
+                case STRING:
+                    value = ConfigValueFactory.fromAnyRef(strings[in.readInt()], ORIGIN);
+                    break;
+                case OBJECT:
+                    int size = readCount(in);
+                    Map<String, ConfigValue> map = new LinkedHashMap<>(presize(size) * 2);
+                    for(int i = 0; i < size; i++) {
+                        String key = strings[in.readInt()];
+                        map.put(key, read(in));
+                    }
+                    value = ConfigValueFactory.fromMap(map, ORIGIN);
+                    break;
+                case LIST:
+                    int length = readCount(in);
+                    List<ConfigValue> list = new ArrayList<>(presize(length));
+                    for(int i = 0; i < length; i++) {
+                        list.add(read(in));
+                    }
+                    value = ConfigValueFactory.fromIterable(list, ORIGIN);
+                    break;
+                default:
+                    throw new IOException("Unknown value tag " + tag);
+            }
+            if(origins) {
+                String description = strings[in.readInt()];
+                value = value.withOrigin(descriptions.computeIfAbsent(description, ConfigOriginFactory::newSimple));
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package se.jabberwocky.hocon.hiera;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free default implementation of {@link HieraMetrics} counting the events and recording the latencies in
+ * histograms with power of two buckets, i.e. percentiles are accurate to within a factor of two. The statistics may be
+ * registered as an MBean to be graphed with the other metrics of the application.
+ */
+public final class HieraStats implements HieraMetrics, HieraStatsMBean {
+
+    public static final String DOMAIN = "se.jabberwocky.hocon.hiera";
+
+    private final LongAdder layerHits = new LongAdder();
+    private final LongAdder layerMisses = new LongAdder();
+    private final Histogram parses = new Histogram();
+    private final Histogram merges = new Histogram();
+    private final Histogram lookups = new Histogram();
+    private volatile ObjectName name;
+
+    @Override
+    public void layer(String path, boolean found) {
+        (found ? layerHits : layerMisses).increment();
+    }
+
+    @Override
+    public void parsed(String path, long nanos) {
+        parses.record(nanos);
+    }
+
+    @Override
+    public void merged(int layers, long nanos) {
+        merges.record(nanos);
+    }
+
+    @Override
+    public void lookup(long nanos) {
+        lookups.record(nanos);
+    }
+
+    /**
+     * Register the statistics with the platform MBean server as
+     * <code>se.jabberwocky.hocon.hiera:type=HieraStats,name=&lt;name&gt;</code>.
+     *
+     * @param name the name distinguishing the hiera, e.g. its root directory
+     * @return <code>this</code> for a fluent interface
+     */
+    public HieraStats register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=HieraStats,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.name = objectName;
+            return this;
+        } catch (JMException e) {
+            throw new RuntimeException("Could not register the hiera statistics '" + name + "'", e);
+        }
+    }
+
+    /**
+     * Unregister the statistics from the platform MBean server, if registered.
+     */
+    public void unregister() {
+        ObjectName name = this.name;
+        if(name == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            this.name = null;
+        } catch (JMException e) {
+            throw new RuntimeException("Could not unregister the hiera statistics '" + name + "'", e);
+        }
+    }
+
+    /**
+     * @return the registered name or null if not registered
+     */
+    public ObjectName name() {
+        return name;
+    }
+
+    @Override
+    public long getLayerHits() {
+        return layerHits.sum();
+    }
+
+    @Override
+    public long getLayerMisses() {
+        return layerMisses.sum();
+    }
+
+    @Override
+    public long getParses() {
+        return parses.count();
+    }
+
+    @Override
+    public double getParseMeanMicros() {
+        return parses.meanMicros();
+    }
+
+    @Override
+    public long getParseP50Micros() {
+        return parses.percentileMicros(0.5);
+    }
+
+    @Override
+    public long getParseP95Micros() {
+        return parses.percentileMicros(0.95);
+    }
+
+    @Override
+    public long getParseP99Micros() {
+        return parses.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getParseMaxMicros() {
+        return parses.maxMicros();
+    }
+
+    @Override
+    public long getMerges() {
+        return merges.count();
+    }
+
+    @Override
+    public double getMergeMeanMicros() {
+        return merges.meanMicros();
+    }
+
+    @Override
+    public long getMergeP50Micros() {
+        return merges.percentileMicros(0.5);
+    }
+
+    @Override
+    public long getMergeP95Micros() {
+        return merges.percentileMicros(0.95);
+    }
+
+    @Override
+    public long getMergeP99Micros() {
+        return merges.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getMergeMaxMicros() {
+        return merges.maxMicros();
+    }
+
+    @Override
+    public long getLookups() {
+        return lookups.count();
+    }
+
+    @Override
+    public double getLookupMeanMicros() {
+        return lookups.meanMicros();
+    }
+
+    @Override
+    public long getLookupP50Micros() {
+        return lookups.percentileMicros(0.5);
+    }
+
+    @Override
+    public long getLookupP95Micros() {
+        return lookups.percentileMicros(0.95);
+    }
+
+    @Override
+    public long getLookupP99Micros() {
+        return lookups.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getLookupMaxMicros() {
+        return lookups.maxMicros();
+    }
+
+    @Override
+    public void reset() {
+        layerHits.reset();
+        layerMisses.reset();
+        parses.reset();
+        merges.reset();
+        lookups.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "HieraStats{layerHits=" + getLayerHits() + ", layerMisses=" + getLayerMisses()
+                + ", parses=" + getParses() + ", merges=" + getMerges() + ", lookups=" + getLookups()
+                + ", lookupP50=" + getLookupP50Micros() + "us, lookupP99=" + getLookupP99Micros() + "us}";
+    }
+
+    /**
+     * Histogram of latencies with a bucket per power of two nanoseconds.
+     */
+    private static final class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+            for(int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            // bucket i holds the values below 2^i
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(value), buckets.length - 1)].increment();
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        private long count() {
+            return count.sum();
+        }
+
+        private double meanMicros() {
+            long count = count();
+            return count == 0 ? 0 : sum.sum() / (count * 1000.0);
+        }
+
+        private long maxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(max.get());
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile
+         */
+        private long percentileMicros(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if(total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for(int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if(cumulative >= rank) {
+                    long bound = i < 63 ? 1L << i : Long.MAX_VALUE;
+                    return TimeUnit.NANOSECONDS.toMicros(Math.min(bound, max.get()));
+                }
+            }
+            return maxMicros();
+        }
+
+        private void reset() {
+            for(LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package se.jabberwocky.hocon.hiera;
+
+/**
+ * JMX view of {@link HieraStats}, latencies are in microseconds.
+ */
+public interface HieraStatsMBean {
+
+    long getLayerHits();
+
+    long getLayerMisses();
+
+    long getParses();
+
+    double getParseMeanMicros();
+
+    long getParseP50Micros();
+
+    long getParseP95Micros();
+
+    long getParseP99Micros();
+
+    long getParseMaxMicros();
+
+    long getMerges();
+
+    double getMergeMeanMicros();
+
+    long getMergeP50Micros();
+
+    long getMergeP95Micros();
+
+    long getMergeP99Micros();
+
+    long getMergeMaxMicros();
+
+    long getLookups();
+
+    double getLookupMeanMicros();
+
+    long getLookupP50Micros();
+
+    long getLookupP95Micros();
+
+    long getLookupP99Micros();
+
+    long getLookupMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,39 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+
+/**
+ * Receives the resolved configuration of a set of facts each time it changes, modelled after
+ * <code>java.util.concurrent.Flow.Subscriber</code>. The methods of a subscriber are never called concurrently.
+ *
+ * @see HieraPublisher
+ */
+public interface HieraSubscriber {
+
+    /**
+     * Called once before any configuration is delivered. The default requests an unbounded number of configurations;
+     * override to apply backpressure.
+     *
+     * @param subscription the subscription used to request configurations or to cancel
+     */
+    default void onSubscribe(HieraSubscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    /**
+     * Called with the current configuration and each changed configuration, as far as requested. Configurations
+     * published while there is no demand are conflated, i.e. only the latest one is delivered.
+     *
+     * @param config the resolved configuration
+     */
+    void onNext(Config config);
+
+    /**
+     * Called when the configuration could not be resolved after a change. Unlike <code>Flow</code> an error does not
+     * end the subscription, the last delivered configuration remains current until the next successful change.
+     *
+     * @param error the error
+     */
+    default void onError(Throwable error) {
+    }
+}
@@ -0,0 +1,20 @@
+package se.jabberwocky.hocon.hiera;
+
+/**
+ * Subscription of a {@link HieraSubscriber} to the configuration of a set of facts, modelled after
+ * <code>java.util.concurrent.Flow.Subscription</code>.
+ */
+public interface HieraSubscription {
+
+    /**
+     * Request up to the given number of additional configurations.
+     *
+     * @param n the number of configurations, at least one
+     */
+    void request(long n);
+
+    /**
+     * Stop receiving configurations. Configurations already being delivered may still arrive.
+     */
+    void cancel();
+}
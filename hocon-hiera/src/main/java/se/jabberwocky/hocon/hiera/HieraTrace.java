@@ -0,0 +1,250 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trace of a single configuration lookup recorded by {@link HoconHiera#trace(Map, HieraTrace)}: the timing of each
+ * layer of the hierarchy and the provenance of each key, i.e. the layer the final value of the key was taken from.
+ * <p>
+ * Tracing is opt-in per lookup, lookups through {@link HoconHiera#config(Map)} are not affected.
+ */
+public final class HieraTrace {
+
+    private final List<Layer> layers = new ArrayList<>();
+    private final Map<String, String> provenance = new TreeMap<>();
+    private long totalNanos;
+
+    /**
+     * @return the traced layers in order of increasing precedence
+     */
+    public List<Layer> layers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    /**
+     * @return the path of the layer providing the value of each key of the configuration, by key path
+     */
+    public Map<String, String> provenance() {
+        return Collections.unmodifiableMap(provenance);
+    }
+
+    /**
+     * @param key the path of a key in the configuration
+     * @return the path of the layer providing the value of the key, or null if the configuration has no such key
+     */
+    public String provenance(String key) {
+        return provenance.get(key);
+    }
+
+    /**
+     * @return the total time of the lookup in nanoseconds
+     */
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("HieraTrace{total=")
+                .append(TimeUnit.NANOSECONDS.toMicros(totalNanos)).append("us");
+        for(Layer layer : layers) {
+            builder.append("\n  ").append(layer);
+        }
+        return builder.append("\n}").toString();
+    }
+
+    // -- package private methods
+
+    void layer(String path, boolean exists, long bytes, long loadNanos, long mergeNanos) {
+        layers.add(new Layer(path, exists, bytes, loadNanos, mergeNanos));
+    }
+
+    void total(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Record the layer providing each leaf value of the merged configuration, i.e. the layer with the highest
+     * precedence containing the key. A key below a substitution, e.g. <code>mongo: ${?mongo} { port: 27017 }</code>,
+     * is taken from the layer of the substitution if merging that layer changes the resolved value of the key.
+     */
+    void provenance(List<String> paths, List<Config> layers, Config merged) {
+        List<String> keys = new ArrayList<>();
+        collect(resolve(merged).root(), new ArrayList<>(), keys);
+        Map<Integer, Config> resolved = new HashMap<>();
+        for(String key : keys) {
+            List<String> segments = ConfigUtil.splitPath(key);
+            for(int i = layers.size() - 1; i >= 0; i--) {
+                ConfigObject layer = layers.get(i).root();
+                if(find(layer, segments) != null
+                        || substituted(layer, segments) && changes(layers, resolved, i, key)) {
+                    provenance.put(key, paths.get(i));
+                    break;
+                }
+            }
+        }
+    }
+
+    // -- private methods
+
+    /**
+     * Resolve the configuration to collect the keys of substituted subtrees, or keep it unresolved if it cannot be.
+     */
+    private static Config resolve(Config config) {
+        try {
+            return config.resolve();
+        } catch (ConfigException e) {
+            return config;
+        }
+    }
+
+    /**
+     * Collect the paths of all leaf values, unresolved values are leaves too.
+     */
+    private static void collect(ConfigObject object, List<String> prefix, List<String> keys) {
+        for(Map.Entry<String, ConfigValue> entry : object.entrySet()) {
+            prefix.add(entry.getKey());
+            if(entry.getValue() instanceof ConfigObject && entry.getValue().atKey("value").isResolved()) {
+                collect((ConfigObject) entry.getValue(), prefix, keys);
+            } else {
+                keys.add(ConfigUtil.joinPath(prefix));
+            }
+            prefix.remove(prefix.size() - 1);
+        }
+    }
+
+    private static ConfigValue find(ConfigObject object, List<String> segments) {
+        ConfigValue value = object;
+        for(String segment : segments) {
+            if(!(value instanceof ConfigObject) || !value.atKey("value").isResolved()) {
+                return null;
+            }
+            value = ((ConfigObject) value).get(segment);
+        }
+        return value;
+    }
+
+    /**
+     * @return whether the key is below an unresolved value of the layer, i.e. a substitution may provide it
+     */
+    private static boolean substituted(ConfigObject object, List<String> segments) {
+        ConfigValue value = object;
+        for(String segment : segments) {
+            if(value == null || !value.atKey("value").isResolved()) {
+                return value != null;
+            }
+            if(!(value instanceof ConfigObject)) {
+                return false;
+            }
+            value = ((ConfigObject) value).get(segment);
+        }
+        return false;
+    }
+
+    /**
+     * @return whether merging the layer changes the resolved value of the key, or if the layers merged so far cannot
+     * be resolved on their own
+     */
+    private static boolean changes(List<Config> layers, Map<Integer, Config> resolved, int layer, String key) {
+        Config above = resolved(layers, resolved, layer);
+        Config below = layer == 0 ? ConfigFactory.empty() : resolved(layers, resolved, layer - 1);
+        if(above == null || below == null) {
+            return true;
+        }
+        return !Objects.equals(value(above, key), value(below, key));
+    }
+
+    /**
+     * @return the resolved merge of the layers up to the given one, memoized, or null if it cannot be resolved
+     */
+    private static Config resolved(List<Config> layers, Map<Integer, Config> resolved, int layer) {
+        if(!resolved.containsKey(layer)) {
+            Config merged = ConfigFactory.empty();
+            for(Config config : layers.subList(0, layer + 1)) {
+                merged = config.withFallback(merged);
+            }
+            Config config = resolve(merged);
+            resolved.put(layer, config.isResolved() ? config : null);
+        }
+        return resolved.get(layer);
+    }
+
+    private static ConfigValue value(Config config, String key) {
+        try {
+            return config.hasPathOrNull(key) ? config.getValue(key) : null;
+        } catch (ConfigException e) {
+            // a value along the path is not an object
+            return null;
+        }
+    }
+
+    /**
+     * Timing of a single layer of a traced lookup.
+     */
+    public static final class Layer {
+
+        private final String path;
+        private final boolean exists;
+        private final long bytes;
+        private final long loadNanos;
+        private final long mergeNanos;
+
+        private Layer(String path, boolean exists, long bytes, long loadNanos, long mergeNanos) {
+            this.path = path;
+            this.exists = exists;
+            this.bytes = bytes;
+            this.loadNanos = loadNanos;
+            this.mergeNanos = mergeNanos;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        /**
+         * @return the size of the layer source in bytes, or -1 if unknown
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the time spent retrieving the layer in nanoseconds, i.e. parsing it unless it was cached
+         */
+        public long loadNanos() {
+            return loadNanos;
+        }
+
+        /**
+         * @return the time spent merging the layer in nanoseconds
+         */
+        public long mergeNanos() {
+            return mergeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return path + (exists ? "" : " (missing)") + ": bytes=" + bytes
+                    + ", load=" + TimeUnit.NANOSECONDS.toMicros(loadNanos) + "us"
+                    + ", merge=" + TimeUnit.NANOSECONDS.toMicros(mergeNanos) + "us";
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigOrigin;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The <code>hierarchy</code> of a hiera config compiled into templates, e.g. <code>"svc/"${artifactId}".conf"</code>
+ * compiled into the literal <code>svc/</code>, the fact <code>artifactId</code> and the literal <code>.conf</code>.
+ * Expanding the templates for a set of facts only requires string concatenation, no Config is built or resolved.
+ * <p>
+ * Only the facts referenced by the templates are ever looked up, other facts are ignored. A referenced fact missing
+ * from the facts is looked up in the environment, as when resolving the hiera config with the facts, e.g.
+ * <code>${HOSTNAME}</code> falls back to the environment variable unless given as a fact.
+ */
+public final class Hierarchy {
+
+    private static final ConfigRenderOptions CONCISE = ConfigRenderOptions.concise();
+
+    private final Config source;
+    private final ConfigOrigin origin;
+    private final List<Template> templates;
+    private final Set<String> facts;
+    private final Set<String> requiredFacts;
+
+    private Hierarchy(Config source, ConfigOrigin origin, List<Template> templates) {
+        this.source = source;
+        this.origin = origin;
+        this.templates = Collections.unmodifiableList(templates);
+
+        Set<String> facts = new LinkedHashSet<>();
+        Set<String> requiredFacts = new LinkedHashSet<>();
+        for(Template template : templates) {
+            for(Segment segment : template.segments) {
+                if(segment.fact) {
+                    facts.add(segment.value);
+                    if(!segment.optional) {
+                        requiredFacts.add(segment.value);
+                    }
+                }
+            }
+        }
+        this.facts = Collections.unmodifiableSet(facts);
+        this.requiredFacts = Collections.unmodifiableSet(requiredFacts);
+    }
+
+    /**
+     * Compile the unresolved <code>hierarchy</code> list of a hiera config.
+     *
+     * @param hiera an unresolved hiera config
+     * @return the compiled hierarchy
+     * @throws ConfigException.Missing if the hiera config does not contain a hierarchy
+     * @throws ConfigException.BadValue if the hierarchy contains something else than string templates
+     */
+    public static Hierarchy compile(Config hiera) {
+        ConfigValue value = hiera.root().get(HoconHiera.HIERARCHY_CONFIG_KEY);
+        if(value == null) {
+            throw new ConfigException.Missing(HoconHiera.HIERARCHY_CONFIG_KEY);
+        }
+        if(!(value instanceof ConfigList)) {
+            throw new ConfigException.BadValue(value.origin(), HoconHiera.HIERARCHY_CONFIG_KEY,
+                    "The hierarchy should be a list of path templates");
+        }
+
+        List<Template> templates = new ArrayList<>();
+        for(ConfigValue element : (ConfigList) value) {
+            templates.add(Template.parse(element));
+        }
+        return new Hierarchy(hiera, value.origin(), templates);
+    }
+
+    /**
+     * Expand the templates for the given facts.
+     *
+     * @param facts the facts referenced by the templates, unreferenced facts are ignored
+     * @return the paths of the hierarchy in order of increasing precedence
+     * @throws ConfigException.UnresolvedSubstitution if one or more facts required by the templates are missing
+     */
+    public List<String> paths(Map<String, String> facts) {
+        checkFacts(facts);
+
+        List<String> paths = new ArrayList<>(templates.size());
+        StringBuilder builder = new StringBuilder();
+        for(Template template : templates) {
+            builder.setLength(0);
+            for(Segment segment : template.segments) {
+                if(segment.fact) {
+                    String fact = fact(facts, segment.value);
+                    if(fact != null) {
+                        builder.append(fact);
+                    }
+                } else {
+                    builder.append(segment.value);
+                }
+            }
+            paths.add(builder.toString());
+        }
+        return paths;
+    }
+
+    /**
+     * @return the names of all facts referenced by the templates
+     */
+    public Set<String> facts() {
+        return facts;
+    }
+
+    /**
+     * @return the names of all facts referenced by non-optional substitutions
+     */
+    public Set<String> requiredFacts() {
+        return requiredFacts;
+    }
+
+    /**
+     * Return the facts referenced by the templates, i.e. the facts the expanded paths depend on, e.g. to key lookups
+     * of the configuration of the facts. Facts taken from the environment are the same for all lookups and omitted.
+     *
+     * @param facts a set of facts
+     * @return the referenced facts present in the set
+     */
+    public Map<String, String> referenced(Map<String, String> facts) {
+        Map<String, String> referenced = new HashMap<>();
+        for(String fact : this.facts) {
+            String value = facts.get(fact);
+            if(value != null) {
+                referenced.put(fact, value);
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * @return the templates rendered as HOCON, e.g. <code>"svc/"${artifactId}".conf"</code>
+     */
+    public List<String> templates() {
+        List<String> rendered = new ArrayList<>(templates.size());
+        templates.forEach(template -> rendered.add(template.source));
+        return rendered;
+    }
+
+    public int size() {
+        return templates.size();
+    }
+
+    /**
+     * @return the hiera config the hierarchy was compiled from
+     */
+    public Config source() {
+        return source;
+    }
+
+    @Override
+    public String toString() {
+        return "Hierarchy" + templates();
+    }
+
+    // -- private methods
+
+    /**
+     * @return the value of the fact, falling back to the environment variable of the same name
+     */
+    private static String fact(Map<String, String> facts, String name) {
+        String value = facts.get(name);
+        return value != null ? value : System.getenv(name);
+    }
+
+    private void checkFacts(Map<String, String> facts) {
+        List<String> missing = null;
+        for(String fact : requiredFacts) {
+            if(fact(facts, fact) == null) {
+                if(missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(fact);
+            }
+        }
+        if(missing != null) {
+            throw new ConfigException.UnresolvedSubstitution(origin,
+                    "Missing facts " + missing + " required by the hierarchy; found facts " + facts.keySet());
+        }
+    }
+
+    /**
+     * A single template of the hierarchy made up of literal and fact segments.
+     */
+    private static final class Template {
+
+        private final String source;
+        private final List<Segment> segments;
+
+        private Template(String source, List<Segment> segments) {
+            this.source = source;
+            this.segments = segments;
+        }
+
+        /**
+         * Parse the concise rendering of a possibly unresolved string value, i.e. a concatenation of quoted
+         * strings, unquoted text and substitutions such as <code>"svc/"${artifactId}".conf"</code>.
+         */
+        private static Template parse(ConfigValue value) {
+            String source = value.render(CONCISE);
+            List<Segment> segments = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+
+            int i = 0;
+            while(i < source.length()) {
+                char c = source.charAt(i);
+                if(c == '"') {
+                    i = unquote(source, i + 1, literal, value);
+                } else if(c == '$' && source.startsWith("${", i)) {
+                    int end = source.indexOf('}', i);
+                    if(end < 0) {
+                        throw badTemplate(value, source);
+                    }
+                    boolean optional = source.charAt(i + 2) == '?';
+                    String fact = source.substring(i + (optional ? 3 : 2), end).trim();
+                    if(fact.isEmpty()) {
+                        throw badTemplate(value, source);
+                    }
+                    if(literal.length() > 0) {
+                        segments.add(new Segment(literal.toString(), false, false));
+                        literal.setLength(0);
+                    }
+                    segments.add(new Segment(fact, true, optional));
+                    i = end + 1;
+                } else if(c == '{' || c == '[') {
+                    throw badTemplate(value, source);
+                } else {
+                    literal.append(c);
+                    i++;
+                }
+            }
+            if(literal.length() > 0) {
+                segments.add(new Segment(literal.toString(), false, false));
+            }
+            return new Template(source, segments);
+        }
+
+        private static int unquote(String source, int i, StringBuilder literal, ConfigValue value) {
+            while(i < source.length()) {
+                char c = source.charAt(i++);
+                if(c == '"') {
+                    return i;
+                }
+                if(c != '\\') {
+                    literal.append(c);
+                    continue;
+                }
+                if(i >= source.length()) {
+                    break;
+                }
+                char escaped = source.charAt(i++);
+                switch(escaped) {
+                    case 'b': literal.append('\b'); break;
+                    case 'f': literal.append('\f'); break;
+                    case 'n': literal.append('\n'); break;
+                    case 'r': literal.append('\r'); break;
+                    case 't': literal.append('\t'); break;
+                    case 'u':
+                        if(i + 4 > source.length()) {
+                            throw badTemplate(value, source);
+                        }
+                        literal.append((char) Integer.parseInt(source.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default:
+                        literal.append(escaped);
+                }
+            }
+            throw badTemplate(value, source);
+        }
+
+        private static ConfigException badTemplate(ConfigValue value, String source) {
+            return new ConfigException.BadValue(value.origin(), HoconHiera.HIERARCHY_CONFIG_KEY,
+                    "Expected a string template but found " + source);
+        }
+    }
+
+    /**
+     * Either a literal string or a reference to a fact.
+     */
+    private static final class Segment {
+
+        private final String value;
+        private final boolean fact;
+        private final boolean optional;
+
+        private Segment(String value, boolean fact, boolean optional) {
+            this.value = value;
+            this.fact = fact;
+            this.optional = optional;
+        }
+    }
+}
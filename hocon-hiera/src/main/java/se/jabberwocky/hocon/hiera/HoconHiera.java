@@ -2,8 +2,18 @@ package se.jabberwocky.hocon.hiera;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Retrieves HOCON configuration files based on a config
@@ -15,6 +25,16 @@ public interface HoconHiera {
      */
     String HIERARCHY_CONFIG_KEY = "hierarchy";
 
+    /**
+     * Path of the Hiera Config relative to the root of the hiera.
+     */
+    String HIERA_CONFIG_FILE = "hiera.conf";
+
+    /**
+     * Fingerprint of a missing or empty layer.
+     */
+    String MISSING_FINGERPRINT = "";
+
     /**
      * Return the unresolved Hiera Config that contains a list of paths under the HIERARCHY_CONFIG_KEY.
      *
@@ -22,6 +42,15 @@ public interface HoconHiera {
      */
     Config hiera();
 
+    /**
+     * Return the hierarchy of the Hiera Config compiled into path templates.
+     *
+     * @return the compiled hierarchy of the current Hiera Config
+     */
+    default Hierarchy hierarchy() {
+        return Hierarchy.compile(hiera());
+    }
+
     /**
      * Retrieve the config for the given path
      *
@@ -30,6 +59,80 @@ public interface HoconHiera {
      */
     Config config(String path);
 
+    /**
+     * Return the metrics the hiera reports into.
+     *
+     * @return the metrics, {@link HieraMetrics#NONE} by default
+     */
+    default HieraMetrics metrics() {
+        return HieraMetrics.NONE;
+    }
+
+    /**
+     * Return the size of the source of the given path, e.g. the file size, used for tracing lookups.
+     *
+     * @param path to a configuration file
+     * @return the size in bytes, zero if the path does not exist or -1 if unknown
+     */
+    default long size(String path) {
+        return -1;
+    }
+
+    /**
+     * Return whether the source of the given path exists, e.g. an empty file exists although its config is empty.
+     * The default implementation takes a path without a fingerprint as missing.
+     *
+     * @param path to a configuration file
+     * @return true if the path exists
+     */
+    default boolean exists(String path) {
+        return !MISSING_FINGERPRINT.equals(fingerprint(path));
+    }
+
+    /**
+     * Return a content hash of the config for the given path. The default implementation hashes the rendered config,
+     * implementations may hash the source instead.
+     *
+     * @param path to a configuration file
+     * @return the hex encoded SHA-256 hash of the config or {@link #MISSING_FINGERPRINT} if the path does not exist
+     */
+    default String fingerprint(String path) {
+        Config config = config(path);
+        return config.isEmpty()
+                ? MISSING_FINGERPRINT
+                : Digests.sha256(config.root().render(ConfigRenderOptions.concise()));
+    }
+
+    /**
+     * Return a content hash of all layers contributing to the configuration of a set of facts, i.e. the hiera config
+     * and the paths and fingerprints of the layers in the hierarchy. The fingerprint changes if and only if the
+     * configuration may have changed.
+     *
+     * @param facts used to resolve the configuration
+     * @return the hex encoded SHA-256 hash of the layers
+     */
+    default String fingerprint(Map<String,String> facts) {
+        MessageDigest digest = Digests.sha256();
+        Digests.update(digest, fingerprint(HIERA_CONFIG_FILE));
+        for(String path : hierarchy().paths(facts)) {
+            Digests.update(digest, path);
+            Digests.update(digest, fingerprint(path));
+        }
+        return Digests.hex(digest.digest());
+    }
+
+    /**
+     * Merge the layers of a hierarchy in order of increasing precedence, i.e. each layer uses the layers before it
+     * as its fallback.
+     *
+     * @param paths the paths of the layers
+     * @param layers the layers retrieved for the paths
+     * @return the merged configuration
+     */
+    default Config merge(List<String> paths, List<Config> layers) {
+        return Layers.merge(layers);
+    }
+
     /**
      * Retrieve the resolved configuration for a given set of facts
      *
@@ -38,16 +141,274 @@ public interface HoconHiera {
      */
     default Config config(Map<String,String> facts) {
 
-        Config factsConfig = ConfigFactory.parseMap(facts);
+        HieraMetrics metrics = metrics();
+        long start = System.nanoTime();
 
-        // resolve the hiera config with the provided facts
-        return hiera().resolveWith(factsConfig)
-                // retrieve and stream the resolved paths
-                .getStringList(HIERARCHY_CONFIG_KEY).stream()
+        // expand the compiled hierarchy with the provided facts
+        List<String> paths = hierarchy().paths(facts);
+
+        List<Config> layers = paths.stream()
                 // map each path to a configuration
                 .map(this::config)
-                // use the previous config as the fallback for the next
-                .reduce(ConfigFactory.empty(), (previous, next) -> next.withFallback(previous));
+                .collect(Collectors.toList());
+
+        long merge = System.nanoTime();
+        Config config = merge(paths, layers);
+
+        long end = System.nanoTime();
+        metrics.merged(layers.size(), end - merge);
+        metrics.lookup(end - start);
+        return config;
+
+    }
+
+    /**
+     * Retrieve a subtree of the configuration for a given set of facts, e.g. the section of a single component. Only
+     * the subtree at the prefix is taken from each layer and merged, the result holds the subtree at its path.
+     * <p>
+     * As in the full configuration, a layer setting the prefix, or any of its ancestors, to a value other than an
+     * object hides the layers below it. A layer holding a substitution at or above the prefix, e.g.
+     * <code>mongo: ${?mongo} { port: 27017 }</code>, is merged in full rather than subtree by subtree. Substitutions
+     * are resolved within the subtree only, i.e. a subtree referencing a key outside of it cannot be resolved.
+     *
+     * @param facts used to resolve the configuration
+     * @param prefix the path of the subtree, e.g. <code>mongo</code>
+     * @return the subtree of the configuration matching the facts
+     */
+    default Config config(Map<String,String> facts, String prefix) {
+
+        HieraMetrics metrics = metrics();
+        long start = System.nanoTime();
+
+        List<Config> layers = hierarchy().paths(facts).stream()
+                .map(this::config)
+                .collect(Collectors.toList());
+
+        // not merged by merge(List, List) as its optimizations may cache the merged layers by path
+        long merge = System.nanoTime();
+        Config config = Layers.subtree(layers, prefix);
+
+        long end = System.nanoTime();
+        metrics.merged(layers.size(), end - merge);
+        metrics.lookup(end - start);
+        return config;
+
+    }
+
+    /**
+     * Retrieve the configuration for a given set of facts as a lazy {@link LayeredConfig layered view} of its layers.
+     * Rather than merging every layer up front, each path is looked up through the layers on first access, which is
+     * cheaper than {@link #config(Map)} when only a few keys of large layers are read.
+     * <p>
+     * Neither the view nor the snapshot returned by {@link #flat(Map)} is a {@link Config}, as Typesafe Config merges
+     * and resolves its own implementation only; {@link LayeredConfig#toConfig()} and {@link FlatConfig#config()}
+     * return the configuration to pass on.
+     *
+     * @param facts used to resolve the configuration
+     * @return a lazy view of the configuration matching the facts
+     */
+    default LayeredConfig layered(Map<String,String> facts) {
+
+        long start = System.nanoTime();
+        List<Config> layers = hierarchy().paths(facts).stream()
+                .map(this::config)
+                .collect(Collectors.toList());
+
+        metrics().lookup(System.nanoTime() - start);
+        return new LayeredConfig(layers);
+
+    }
+
+    /**
+     * Retrieve the resolved configuration for a given set of facts as a {@link FlatConfig flattened snapshot} indexed
+     * by path, for configurations read on hot paths, e.g. per request.
+     *
+     * @param facts used to resolve the configuration
+     * @return the flattened snapshot of the resolved configuration matching the facts
+     */
+    default FlatConfig flat(Map<String,String> facts) {
+        return FlatConfig.of(config(facts).resolve());
+    }
+
+    /**
+     * Retrieve the resolved configuration for a given set of facts and record the timing of each layer and the
+     * provenance of each key in a trace. The layers are merged one at a time to time each merge, i.e. without the
+     * optimizations of {@link #merge(List, List)}; tracing is meant for diagnosing single lookups.
+     *
+     * @param facts used to resolve the configuration
+     * @param trace the trace to record the lookup in
+     * @return configuration matching the facts
+     */
+    default Config trace(Map<String,String> facts, HieraTrace trace) {
+
+        long start = System.nanoTime();
+        List<String> paths = hierarchy().paths(facts);
+
+        List<Config> layers = new ArrayList<>(paths.size());
+        Config config = ConfigFactory.empty();
+        for(String path : paths) {
+            long loadStart = System.nanoTime();
+            Config layer = config(path);
+            long mergeStart = System.nanoTime();
+            config = layer.withFallback(config);
+            long mergeEnd = System.nanoTime();
+
+            layers.add(layer);
+            trace.layer(path, exists(path), size(path), mergeStart - loadStart, mergeEnd - mergeStart);
+        }
+
+        trace.provenance(paths, layers, config);
+        trace.total(System.nanoTime() - start);
+        return config;
+
+    }
+
+    /**
+     * Retrieve the resolved configuration for a given set of facts, loading the layers concurrently. The layers are
+     * merged in the same order as by {@link #config(Map)} once all of them have been loaded.
+     *
+     * @param facts used to resolve the configuration
+     * @param executor used for loading the layers, e.g. {@link HieraExecutors#defaultExecutor()}
+     * @return configuration matching the facts
+     */
+    default Config config(Map<String,String> facts, Executor executor) {
+
+        HieraMetrics metrics = metrics();
+        long start = System.nanoTime();
+        List<String> paths = hierarchy().paths(facts);
+
+        List<CompletableFuture<Config>> futures = paths.stream()
+                .map(path -> CompletableFuture.supplyAsync(() -> config(path), executor))
+                .collect(Collectors.toList());
+
+        List<Config> layers = new ArrayList<>(futures.size());
+        futures.forEach(future -> layers.add(Layers.join(future)));
+
+        long merge = System.nanoTime();
+        Config config = merge(paths, layers);
+
+        long end = System.nanoTime();
+        metrics.merged(layers.size(), end - merge);
+        metrics.lookup(end - start);
+        return config;
+
+    }
+
+    /**
+     * Retrieve the unresolved Hiera Config asynchronously on the {@link HieraExecutors#defaultExecutor() default
+     * executor}.
+     *
+     * @return a future of the unresolved Hiera config
+     */
+    default CompletableFuture<Config> hieraAsync() {
+        return hieraAsync(HieraExecutors.defaultExecutor());
+    }
+
+    /**
+     * Retrieve the unresolved Hiera Config asynchronously, i.e. without blocking the calling thread on I/O.
+     *
+     * @param executor used for the blocking I/O
+     * @return a future of the unresolved Hiera config
+     */
+    default CompletableFuture<Config> hieraAsync(Executor executor) {
+        return CompletableFuture.supplyAsync(this::hiera, executor);
+    }
+
+    /**
+     * Retrieve the config for the given path asynchronously on the {@link HieraExecutors#defaultExecutor() default
+     * executor}.
+     *
+     * @param path to a configuration file
+     * @return a future of the parsed config
+     */
+    default CompletableFuture<Config> configAsync(String path) {
+        return configAsync(path, HieraExecutors.defaultExecutor());
+    }
+
+    /**
+     * Retrieve the config for the given path asynchronously, i.e. without blocking the calling thread on I/O.
+     *
+     * @param path to a configuration file
+     * @param executor used for the blocking I/O
+     * @return a future of the parsed config
+     */
+    default CompletableFuture<Config> configAsync(String path, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> config(path), executor);
+    }
+
+    /**
+     * Retrieve the configuration for a given set of facts asynchronously on the
+     * {@link HieraExecutors#defaultExecutor() default executor}.
+     *
+     * @param facts used to resolve the configuration
+     * @return a future of the configuration matching the facts
+     */
+    default CompletableFuture<Config> configAsync(Map<String,String> facts) {
+        return configAsync(facts, HieraExecutors.defaultExecutor());
+    }
+
+    /**
+     * Retrieve the configuration for a given set of facts asynchronously, i.e. without blocking the calling thread on
+     * I/O. The layers are loaded concurrently and merged once all of them have been loaded; no thread of the executor
+     * is blocked waiting for another task.
+     *
+     * @param facts used to resolve the configuration
+     * @param executor used for the blocking I/O
+     * @return a future of the configuration matching the facts
+     */
+    default CompletableFuture<Config> configAsync(Map<String,String> facts, Executor executor) {
+        long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> hierarchy().paths(facts), executor).thenCompose(paths -> {
+
+            List<CompletableFuture<Config>> futures = paths.stream()
+                    .map(path -> configAsync(path, executor))
+                    .collect(Collectors.toList());
+
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                HieraMetrics metrics = metrics();
+                long merge = System.nanoTime();
+                Config config = merge(paths, futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
+
+                long end = System.nanoTime();
+                metrics.merged(paths.size(), end - merge);
+                metrics.lookup(end - start);
+                return config;
+            });
+        });
+    }
+
+    /**
+     * Retrieve the resolved configurations for many sets of facts at once, e.g. for all nodes in a datacenter. Each
+     * distinct layer shared by the fact sets is loaded only once and the configurations are merged in parallel.
+     *
+     * @param factSets the sets of facts used to resolve the configurations
+     * @return the configuration matching each distinct set of facts, in iteration order of the fact sets
+     */
+    default Map<Map<String,String>, Config> configs(Collection<? extends Map<String,String>> factSets) {
+
+        Hierarchy hierarchy = hierarchy();
+
+        // expand the hierarchy for all fact sets first to fail fast on missing facts
+        Map<Map<String,String>, List<String>> paths = new LinkedHashMap<>();
+        factSets.forEach(facts -> paths.computeIfAbsent(facts, hierarchy::paths));
+
+        // load each distinct layer once
+        Map<String, Config> layers = paths.values().stream()
+                .flatMap(List::stream)
+                .distinct()
+                .parallel()
+                .collect(Collectors.toConcurrentMap(Function.identity(), this::config));
+
+        return paths.entrySet().parallelStream()
+                .collect(Collectors.toMap(
+                        Map.Entry::getKey,
+                        entry -> merge(entry.getValue(), entry.getValue().stream()
+                                .map(layers::get)
+                                .collect(Collectors.toList())),
+                        (first, second) -> first,
+                        LinkedHashMap::new));
 
     }
 }
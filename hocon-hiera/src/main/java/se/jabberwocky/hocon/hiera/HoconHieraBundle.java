@@ -0,0 +1,345 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigSyntax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * HOCON Hiera served from a single packed bundle file. The bundle starts with an index of all files followed by the
+ * file contents; the bundle is memory mapped and each layer is read by its offset, i.e. opening a bundle replaces
+ * opening each of the small files in a hiera directory.
+ * <p>
+ * The bundle format is
+ * <pre>
+ * int     magic number 0x48494552
+ * int     format version
+ * int     number of files
+ * entry*  for each file its path (modified UTF-8), offset (long) and length (int)
+ * byte*   the UTF-8 contents of the files
+ * </pre>
+ * Bundles are created with {@link #pack(Path, Path)}.
+ */
+public class HoconHieraBundle implements HoconHiera, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(HoconHieraBundle.class.getName());
+
+    public static final int MAGIC = 0x48494552;
+    public static final int VERSION = 1;
+
+    private static final int MIN_ENTRY_SIZE = 2 + 8 + 4;
+
+    // bundles are immutable and all cached entries share the same stamp
+    private static final Object STAMP = new Object();
+
+    private final Path bundle;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Map<String, Entry> entries;
+    private final ConfigCache cache;
+    private volatile Hierarchy hierarchy;
+    // fingerprints of the present files, computed once as the files do not change
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    private HoconHieraBundle(Path bundle, FileChannel channel, MappedByteBuffer buffer,
+                             Map<String, Entry> entries, ConfigCache cache) {
+        this.bundle = bundle;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.entries = entries;
+        this.cache = cache;
+    }
+
+    /**
+     * Open a packed bundle.
+     *
+     * @param bundle the bundle file
+     * @return a hiera backed by the bundle
+     */
+    public static HoconHieraBundle open(Path bundle) {
+        return open(bundle, new ConfigCache());
+    }
+
+    public static HoconHieraBundle open(Path bundle, ConfigCache cache) {
+        try {
+            FileChannel channel = FileChannel.open(bundle, StandardOpenOption.READ);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                Map<String, Entry> entries = readIndex(bundle, buffer);
+                LOGGER.fine("Opened the bundle '" + bundle + "' with " + entries.size() + " files");
+                return new HoconHieraBundle(bundle, channel, buffer, entries, cache);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the bundle '" + bundle + "'", e);
+        }
+    }
+
+    /**
+     * Pack all files below a hiera root directory into a bundle. The bundle is written to a temporary file that is
+     * atomically moved into place.
+     *
+     * @param root the hiera root directory
+     * @param bundle the bundle file to create or replace
+     */
+    public static void pack(Path root, Path bundle) {
+        try {
+            List<Path> files;
+            try (Stream<Path> paths = Files.walk(root)) {
+                files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+
+            List<String> names = new ArrayList<>(files.size());
+            List<byte[]> contents = new ArrayList<>(files.size());
+            for(Path file : files) {
+                names.add(relativize(root, file));
+                contents.add(Files.readAllBytes(file));
+            }
+
+            // the header is written twice, first to learn its size and then with the actual offsets
+            byte[] header = header(names, contents, 0);
+            header = header(names, contents, header.length);
+
+            Path parent = bundle.toAbsolutePath().getParent();
+            Path temp = Files.createTempFile(parent, bundle.getFileName().toString(), ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temp)) {
+                stream.write(header);
+                for(byte[] content : contents) {
+                    stream.write(content);
+                }
+            }
+            Files.move(temp, bundle, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Packed " + files.size() + " files from '" + root + "' into '" + bundle + "'");
+        } catch (IOException e) {
+            throw new RuntimeException("Could not pack '" + root + "' into the bundle '" + bundle + "'", e);
+        }
+    }
+
+    @Override
+    public Config hiera() {
+        return config(HIERA_CONFIG_FILE);
+    }
+
+    @Override
+    public Hierarchy hierarchy() {
+        Config hiera = hiera();
+        Hierarchy hierarchy = this.hierarchy;
+        if(hierarchy == null || hierarchy.source() != hiera) {
+            hierarchy = Hierarchy.compile(hiera);
+            this.hierarchy = hierarchy;
+        }
+        return hierarchy;
+    }
+
+    @Override
+    public Config config(String path) {
+        Entry entry = entries.get(normalize(path));
+        if(entry == null) {
+            return ConfigFactory.empty();
+        }
+        return cache.get(entry.path, STAMP, entry.length, () -> parse(entry));
+    }
+
+    /**
+     * Return the fingerprint of the config, computed once per present path as the contents never change.
+     */
+    @Override
+    public String fingerprint(String path) {
+        String key = normalize(path);
+        String fingerprint = fingerprints.get(key);
+        if(fingerprint == null) {
+            fingerprint = HoconHiera.super.fingerprint(key);
+            // missing paths are not remembered, their number is only bounded by the facts
+            if(!fingerprint.equals(MISSING_FINGERPRINT)) {
+                fingerprints.put(key, fingerprint);
+            }
+        }
+        return fingerprint;
+    }
+
+    @Override
+    public long size(String path) {
+        Entry entry = entries.get(normalize(path));
+        return entry == null ? 0 : entry.length;
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return entries.containsKey(normalize(path));
+    }
+
+    /**
+     * @return the paths of all files in the bundle
+     */
+    public List<String> paths() {
+        List<String> paths = new ArrayList<>(entries.keySet());
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * @return the cache of parsed files
+     */
+    public ConfigCache cache() {
+        return cache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // -- private methods
+
+    private Config parse(Entry entry) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(entry.offset);
+        slice.limit(entry.offset + entry.length);
+        String content = StandardCharsets.UTF_8.decode(slice).toString();
+
+        ConfigParseOptions options = ConfigParseOptions.defaults()
+                .setSyntax(ConfigSyntax.CONF)
+                .setOriginDescription(bundle + "!/" + entry.path);
+        return ConfigFactory.parseString(content, options);
+    }
+
+    private static Map<String, Entry> readIndex(Path bundle, ByteBuffer buffer) throws IOException {
+        ByteBuffer header = buffer.duplicate();
+        if(header.remaining() < 12 || header.getInt() != MAGIC) {
+            throw new IOException("The file '" + bundle + "' is not a hiera bundle");
+        }
+        int version = header.getInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported bundle version " + version + " in '" + bundle + "'");
+        }
+
+        int count = header.getInt();
+        // each entry takes at least the length of its path, its offset and its length
+        if(count < 0 || count > header.remaining() / MIN_ENTRY_SIZE) {
+            throw new IOException("Corrupt index of " + count + " files in the bundle '" + bundle + "'");
+        }
+        // not presized by the count, a corrupt count ends reading the index rather than exhausting the heap
+        Map<String, Entry> entries = new HashMap<>();
+        DataInputStream stream = new DataInputStream(new ByteBufferInputStream(header));
+        for(int i = 0; i < count; i++) {
+            String path = stream.readUTF();
+            long offset = stream.readLong();
+            int length = stream.readInt();
+            if(offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+                throw new IOException("Corrupt entry for '" + path + "' in the bundle '" + bundle + "'");
+            }
+            entries.put(path, new Entry(path, (int) offset, length));
+        }
+        return entries;
+    }
+
+    private static byte[] header(List<String> names, List<byte[]> contents, int headerSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        stream.writeInt(MAGIC);
+        stream.writeInt(VERSION);
+        stream.writeInt(names.size());
+
+        long offset = headerSize;
+        for(int i = 0; i < names.size(); i++) {
+            stream.writeUTF(names.get(i));
+            stream.writeLong(offset);
+            stream.writeInt(contents.get(i).length);
+            offset += contents.get(i).length;
+        }
+        if(offset > Integer.MAX_VALUE) {
+            throw new IOException("Bundles are limited to 2 GiB");
+        }
+        stream.flush();
+        return bytes.toByteArray();
+    }
+
+    private static String relativize(Path root, Path file) {
+        StringBuilder builder = new StringBuilder();
+        for(Path name : root.relativize(file)) {
+            if(builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+        while(normalized.startsWith("./")) {
+            normalized = normalized.substring(2);
+        }
+        while(normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        return normalized;
+    }
+
+    private static final class Entry {
+
+        private final String path;
+        private final int offset;
+        private final int length;
+
+        private Entry(String path, int offset, int length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Reads the index from the mapped buffer without copying it.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+    }
+}
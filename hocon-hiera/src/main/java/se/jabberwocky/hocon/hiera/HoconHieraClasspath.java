@@ -0,0 +1,342 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigSyntax;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * HOCON Hiera implementation backed by class loader resources below a root resource directory, e.g. a hiera tree
+ * shipped inside the application jar.
+ * <p>
+ * The resources of the hiera are indexed on first use so that missing layers never trigger a resource lookup across
+ * the class path. The index is read from a <code>hiera.index</code> resource in the root directory if present, e.g.
+ * created at build time with {@link #writeIndex(Path)}, and otherwise built by scanning the directory holding the
+ * <code>hiera.conf</code> of the root directory in each directory or jar of the class path, class files excepted. Paths
+ * with a <code>..</code> segment are treated as missing, i.e. facts cannot point outside of the root.
+ */
+public class HoconHieraClasspath implements HoconHiera {
+
+    private static final Logger LOGGER = Logger.getLogger(HoconHieraClasspath.class.getName());
+
+    public static final String INDEX_FILE = "hiera.index";
+
+    // class path resources do not change and all cached entries share the same stamp
+    private static final Object STAMP = new Object();
+
+    private final ClassLoader classLoader;
+    private final String root;
+    private final ConfigCache cache;
+    private volatile boolean indexed;
+    private volatile Map<String, Long> index;
+    private volatile Hierarchy hierarchy;
+    // fingerprints of the present files, computed once as the files do not change
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    public HoconHieraClasspath(String root) {
+        this(HoconHieraClasspath.class.getClassLoader(), root);
+    }
+
+    public HoconHieraClasspath(ClassLoader classLoader, String root) {
+        this(classLoader, root, new ConfigCache());
+    }
+
+    /**
+     * @param classLoader the class loader of the resources
+     * @param root the root resource directory of the hiera, e.g. <code>hiera</code>
+     * @param cache the cache of parsed resources
+     */
+    public HoconHieraClasspath(ClassLoader classLoader, String root, ConfigCache cache) {
+        this.classLoader = classLoader;
+        this.root = trim(root);
+        this.cache = cache;
+    }
+
+    @Override
+    public Config hiera() {
+        return config(HIERA_CONFIG_FILE);
+    }
+
+    @Override
+    public Hierarchy hierarchy() {
+        Config hiera = hiera();
+        Hierarchy hierarchy = this.hierarchy;
+        if(hierarchy == null || hierarchy.source() != hiera) {
+            hierarchy = Hierarchy.compile(hiera);
+            this.hierarchy = hierarchy;
+        }
+        return hierarchy;
+    }
+
+    @Override
+    public Config config(String path) {
+        String relative = relative(path);
+        if(relative == null) {
+            return ConfigFactory.empty();
+        }
+        Map<String, Long> index = index();
+
+        Long size = index == null ? Long.valueOf(1) : index.get(relative);
+        if(size == null) {
+            return ConfigFactory.empty();
+        }
+
+        String name = resource(relative);
+        if(index == null && classLoader.getResource(name) == null) {
+            // most layers of a hierarchy are absent, i.e. this is not worth a warning
+            LOGGER.finest(() -> "No resource '" + name + "' below the unindexed resources");
+            return ConfigFactory.empty();
+        }
+        return cache.get(name, STAMP, size, () -> parse(name));
+    }
+
+    /**
+     * Return the indexed size of the resource, or -1 if the resources cannot be indexed.
+     */
+    /**
+     * Return the fingerprint of the config, computed once per present path as the contents never change.
+     */
+    @Override
+    public String fingerprint(String path) {
+        String key = relative(path);
+        if(key == null) {
+            return MISSING_FINGERPRINT;
+        }
+        String fingerprint = fingerprints.get(key);
+        if(fingerprint == null) {
+            fingerprint = HoconHiera.super.fingerprint(key);
+            // missing paths are not remembered, their number is only bounded by the facts
+            if(!fingerprint.equals(MISSING_FINGERPRINT)) {
+                fingerprints.put(key, fingerprint);
+            }
+        }
+        return fingerprint;
+    }
+
+    @Override
+    public long size(String path) {
+        String relative = relative(path);
+        if(relative == null) {
+            return 0;
+        }
+        Map<String, Long> index = index();
+        if(index == null) {
+            return -1;
+        }
+        return index.getOrDefault(relative, 0L);
+    }
+
+    /**
+     * Return whether the resource is indexed, or has a fingerprint if the resources cannot be indexed.
+     */
+    @Override
+    public boolean exists(String path) {
+        String relative = relative(path);
+        if(relative == null) {
+            return false;
+        }
+        Map<String, Long> index = index();
+        return index != null ? index.containsKey(relative) : HoconHiera.super.exists(relative);
+    }
+
+    /**
+     * @return the indexed resources relative to the root and their sizes, or null if the resources cannot be indexed
+     */
+    public Map<String, Long> index() {
+        if(!indexed) {
+            synchronized (this) {
+                if(!indexed) {
+                    index = buildIndex();
+                    indexed = true;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write a <code>hiera.index</code> file listing all files below a hiera root directory, typically run at build
+     * time on the resource directory packaged into the jar.
+     *
+     * @param directory the hiera root directory
+     * @return the index file
+     */
+    public static Path writeIndex(Path directory) {
+        Path file = directory.resolve(INDEX_FILE);
+        try (Stream<Path> paths = Files.walk(directory);
+             Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for(Path path : (Iterable<Path>) paths.filter(Files::isRegularFile).sorted()::iterator) {
+                String relative = relativize(directory, path);
+                if(!relative.equals(INDEX_FILE)) {
+                    writer.write(relative + "\t" + Files.size(path) + "\n");
+                }
+            }
+            return file;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the hiera index '" + file + "'", e);
+        }
+    }
+
+    // -- private methods
+
+    private Config parse(String name) {
+        URL url = classLoader.getResource(name);
+        if(url == null) {
+            // listed by a stale index
+            LOGGER.warning("Indexed resource '" + name + "' not found");
+            return ConfigFactory.empty();
+        }
+        ConfigParseOptions options = ConfigParseOptions.defaults()
+                .setSyntax(ConfigSyntax.CONF)
+                .setClassLoader(classLoader);
+        return ConfigFactory.parseURL(url, options);
+    }
+
+    private Map<String, Long> buildIndex() {
+        Map<String, Long> index = new HashMap<>();
+        try {
+            Enumeration<URL> files = classLoader.getResources(resource(INDEX_FILE));
+            if(files.hasMoreElements()) {
+                while(files.hasMoreElements()) {
+                    readIndex(files.nextElement(), index);
+                }
+                LOGGER.fine("Read the index of " + index.size() + " resources below '" + root + "'");
+                return Collections.unmodifiableMap(index);
+            }
+
+            // jars do not necessarily contain directory entries, use the hiera config to find the roots
+            Enumeration<URL> hieras = classLoader.getResources(resource(HIERA_CONFIG_FILE));
+            while(hieras.hasMoreElements()) {
+                URL url = hieras.nextElement();
+                if(!scan(url, index)) {
+                    LOGGER.warning("Cannot index the resources of '" + url + "'");
+                    return null;
+                }
+            }
+            LOGGER.fine("Scanned " + index.size() + " resources below '" + root + "'");
+            return Collections.unmodifiableMap(index);
+        } catch (IOException | URISyntaxException e) {
+            throw new RuntimeException("Could not index the resources below '" + root + "'", e);
+        }
+    }
+
+    /**
+     * Index the files in the directory holding the hiera config and below, class files excepted.
+     */
+    private boolean scan(URL url, Map<String, Long> index) throws IOException, URISyntaxException {
+        switch(url.getProtocol()) {
+            case "file":
+                Path directory = Paths.get(url.toURI()).getParent();
+                try (Stream<Path> paths = Files.walk(directory)) {
+                    for(Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                        String relative = relativize(directory, path);
+                        if(!relative.endsWith(".class")) {
+                            index.putIfAbsent(relative, Files.size(path));
+                        }
+                    }
+                }
+                return true;
+            case "jar":
+                URLConnection connection = url.openConnection();
+                connection.setUseCaches(false);
+                JarURLConnection jarConnection = (JarURLConnection) connection;
+                // the directory of the hiera config entry, i.e. the root within the jar
+                String entryName = jarConnection.getEntryName();
+                String prefix = entryName.substring(0, entryName.length() - HIERA_CONFIG_FILE.length());
+                try (JarFile jar = jarConnection.getJarFile()) {
+                    Enumeration<JarEntry> entries = jar.entries();
+                    while(entries.hasMoreElements()) {
+                        JarEntry entry = entries.nextElement();
+                        String name = entry.getName();
+                        if(!entry.isDirectory() && name.startsWith(prefix) && !name.endsWith(".class")
+                                && !name.startsWith("META-INF/")) {
+                            index.putIfAbsent(name.substring(prefix.length()), entry.getSize());
+                        }
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void readIndex(URL url, Map<String, Long> index) throws IOException {
+        try (InputStream stream = url.openStream();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int tab = line.lastIndexOf('\t');
+                if(tab < 0) {
+                    index.putIfAbsent(trim(line), 1L);
+                } else {
+                    index.putIfAbsent(trim(line.substring(0, tab)), Long.parseLong(line.substring(tab + 1).trim()));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the path relative to the root or null if it contains a <code>..</code> segment, e.g. a fact value
+     * pointing outside of the root
+     */
+    private String relative(String path) {
+        String relative = trim(path);
+        for(String segment : relative.split("/")) {
+            if(segment.equals("..")) {
+                LOGGER.warning(() -> "Ignoring the resource '" + path + "' outside of the hiera root '" + root + "'");
+                return null;
+            }
+        }
+        return relative;
+    }
+
+    private String resource(String relative) {
+        return root.isEmpty() ? relative : root + "/" + relative;
+    }
+
+    private static String trim(String path) {
+        String trimmed = path.replace('\\', '/');
+        while(trimmed.startsWith("/")) {
+            trimmed = trimmed.substring(1);
+        }
+        while(trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+
+    private static String relativize(Path directory, Path path) {
+        List<String> names = new ArrayList<>();
+        directory.relativize(path).forEach(name -> names.add(name.toString()));
+        return String.join("/", names);
+    }
+}
@@ -2,22 +2,50 @@ package se.jabberwocky.hocon.hiera;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigSyntax;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
 
 /**
- * HOCON Hiera implementation backed by a FileSystem
+ * HOCON Hiera implementation backed by a FileSystem, e.g. the default file system or a zip file system serving the
+ * hiera straight from a zip or jar archive. Parsed files are kept in a {@link ConfigCache} and are only
+ * parsed again when their modification time or size changes. Optionally the files below the root are kept in a
+ * {@link PathIndex} so that missing files are detected without touching the file system.
  */
 public class HoconHieraFileSystem implements HoconHiera {
 
-    public static final String HIERA_CONFIG_FILE = "hiera.conf";
+    private static final Logger LOGGER = Logger.getLogger(HoconHieraFileSystem.class.getName());
 
     private final FileSystem fileSystem;
     private final Path root;
+    private final Path normalizedRoot;
+    private final ConfigCache cache;
+    private volatile PathIndex index;
+    private volatile Hierarchy hierarchy;
+    private volatile MergeTrie mergeTrie;
+    private volatile HieraMetrics metrics = HieraMetrics.NONE;
+    private final Map<Path, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    private final InFlight<Map<String, String>, Config> inFlight = new InFlight<>();
 
     public HoconHieraFileSystem(String root) {
         this(new File(root).toPath());
@@ -27,9 +55,41 @@ public class HoconHieraFileSystem implements HoconHiera {
         this(FileSystems.getDefault(), root);
     }
 
+    public HoconHieraFileSystem(FileSystem fileSystem, String root) {
+        this(fileSystem, fileSystem.getPath(root));
+    }
+
     public HoconHieraFileSystem(FileSystem fileSystem, Path root) {
+        this(fileSystem, root, new ConfigCache());
+    }
+
+    /**
+     * @param fileSystem the file system of the hiera
+     * @param root the root of the hiera, a path of a different file system is converted to a path of the given one
+     * @param cache the cache of parsed files
+     */
+    public HoconHieraFileSystem(FileSystem fileSystem, Path root, ConfigCache cache) {
         this.fileSystem = fileSystem;
-        this.root = root;
+        this.root = root.getFileSystem() == fileSystem ? root : fileSystem.getPath(root.toString());
+        this.normalizedRoot = this.root.toAbsolutePath().normalize();
+        this.cache = cache;
+    }
+
+    /**
+     * Create a HOCON Hiera served from a zip or jar archive. The returned hiera owns the zip file system, which
+     * should be closed through {@link #fileSystem()} when the hiera is no longer used.
+     *
+     * @param archive the zip or jar archive
+     * @param root the root of the hiera within the archive, e.g. <code>/</code> or <code>/hiera</code>
+     * @return a hiera backed by a zip file system
+     */
+    public static HoconHieraFileSystem zip(Path archive, String root) {
+        try {
+            FileSystem fileSystem = FileSystems.newFileSystem(archive, (ClassLoader) null);
+            return new HoconHieraFileSystem(fileSystem, root);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the archive '" + archive + "'", e);
+        }
     }
 
     @Override
@@ -37,14 +97,318 @@ public class HoconHieraFileSystem implements HoconHiera {
         return config(HIERA_CONFIG_FILE);
     }
 
+    /**
+     * Return the compiled hierarchy, compiling it again only if the hiera config file has changed.
+     */
+    @Override
+    public Hierarchy hierarchy() {
+        Config hiera = hiera();
+        Hierarchy hierarchy = this.hierarchy;
+        if(hierarchy == null || hierarchy.source() != hiera) {
+            hierarchy = Hierarchy.compile(hiera);
+            this.hierarchy = hierarchy;
+        }
+        return hierarchy;
+    }
+
     @Override
     public Config config(String file) {
+        Path path = path(file);
+
+        HieraMetrics metrics = this.metrics;
+        BasicFileAttributes attributes = attributes(path);
+        if(attributes == null) {
+            // most layers of a hierarchy are absent, i.e. this is not worth a warning
+            LOGGER.finest(() -> "The facet value does not match the config file '" + path + "'");
+            metrics.layer(file, false);
+            return ConfigFactory.empty();
+        }
+
+        metrics.layer(file, true);
+        FileStamp stamp = new FileStamp(attributes.lastModifiedTime(), attributes.size());
+        return cache.get(path, stamp, attributes.size(), () -> {
+            long start = System.nanoTime();
+            Config config = parse(path);
+            metrics.parsed(file, System.nanoTime() - start);
+            return config;
+        });
+    }
+
+    @Override
+    public long size(String file) {
+        BasicFileAttributes attributes = attributes(path(file));
+        return attributes == null ? 0 : attributes.size();
+    }
+
+    @Override
+    public boolean exists(String file) {
+        return attributes(path(file)) != null;
+    }
+
+    /**
+     * Return the SHA-256 hash of the file contents, computed again only when the file modification time or size
+     * changes.
+     */
+    @Override
+    public String fingerprint(String file) {
+        Path path = path(file);
+
+        BasicFileAttributes attributes = attributes(path);
+        if(attributes == null || attributes.size() == 0) {
+            return MISSING_FINGERPRINT;
+        }
+
+        FileStamp stamp = new FileStamp(attributes.lastModifiedTime(), attributes.size());
+        Fingerprint fingerprint = fingerprints.get(path);
+        if(fingerprint == null || !fingerprint.stamp.equals(stamp)) {
+            try {
+                fingerprint = new Fingerprint(stamp, Digests.sha256(Files.readAllBytes(path)));
+            } catch (NoSuchFileException e) {
+                return MISSING_FINGERPRINT;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read '" + path + "'", e);
+            }
+            fingerprints.put(path, fingerprint);
+        }
+        return fingerprint.hash;
+    }
+
+    /**
+     * Merge the layers reusing the merged prefixes memoized in the merge trie, if enabled.
+     */
+    @Override
+    public Config merge(List<String> paths, List<Config> layers) {
+        MergeTrie mergeTrie = this.mergeTrie;
+        return mergeTrie == null ? HoconHiera.super.merge(paths, layers) : mergeTrie.merge(paths, layers);
+    }
+
+    /**
+     * Retrieve the configuration asynchronously, concurrent requests for the same facts share a single lookup. Facts
+     * are the same if the facts referenced by the hierarchy are, e.g. a request id does not prevent sharing a lookup.
+     */
+    @Override
+    public CompletableFuture<Config> configAsync(Map<String, String> facts, Executor executor) {
+        return CompletableFuture.supplyAsync(this::hierarchy, executor).thenCompose(hierarchy ->
+                inFlight.get(hierarchy.referenced(facts), () -> HoconHiera.super.configAsync(facts, executor)));
+    }
+
+    /**
+     * @return the number of asynchronous lookups that joined a lookup of the same facts in flight
+     */
+    public long coalesced() {
+        return inFlight.coalesced();
+    }
+
+    /**
+     * Memoize merged hierarchy prefixes in a {@link MergeTrie} so that hierarchies sharing their leading layers only
+     * merge the layers that differ.
+     *
+     * @param maxNodes the maximum number of memoized prefixes
+     * @return <code>this</code> for a fluent interface
+     */
+    public HoconHieraFileSystem withMergeTrie(int maxNodes) {
+        this.mergeTrie = new MergeTrie(maxNodes);
+        return this;
+    }
+
+    /**
+     * Report layer lookups, parses, merges and lookups into the given metrics, e.g. {@link HieraStats}.
+     *
+     * @param metrics the metrics
+     * @return <code>this</code> for a fluent interface
+     */
+    public HoconHieraFileSystem withMetrics(HieraMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    @Override
+    public HieraMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the merge trie or null if not enabled
+     */
+    public MergeTrie mergeTrie() {
+        return mergeTrie;
+    }
+
+    /**
+     * Scan the root directory into a {@link PathIndex} used for all subsequent existence checks. Files added after
+     * the scan are not visible until the index has been refreshed.
+     *
+     * @return <code>this</code> for a fluent interface
+     * @see #refreshIndex()
+     */
+    public HoconHieraFileSystem withPathIndex() {
+        this.index = PathIndex.scan(root);
+        return this;
+    }
+
+    /**
+     * Rescan the directories of the path index that have been modified since they were last scanned.
+     *
+     * @return the number of rescanned directories
+     * @throws IllegalStateException if the path index has not been enabled
+     */
+    public int refreshIndex() {
+        PathIndex index = this.index;
+        if(index == null) {
+            throw new IllegalStateException("The path index is not enabled");
+        }
+        return index.refresh();
+    }
+
+    /**
+     * Drop the given files from the cache and rescan their directories if the path index is enabled.
+     *
+     * @param files the changed files relative to the root
+     */
+    public void invalidate(Collection<String> files) {
+        Set<Path> directories = new HashSet<>();
+        for(String file : files) {
+            Path path = root.resolve(file);
+            cache.invalidate(path);
+            fingerprints.remove(path);
+            if(path.getParent() != null) {
+                directories.add(path.getParent());
+            }
+        }
+
+        PathIndex index = this.index;
+        if(index != null) {
+            directories.forEach(index::refresh);
+        }
+    }
+
+    /**
+     * Drop all files from the cache and all memoized merges, and rescan the root directory if the path index is
+     * enabled.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+        fingerprints.clear();
+        MergeTrie mergeTrie = this.mergeTrie;
+        if(mergeTrie != null) {
+            mergeTrie.clear();
+        }
+        if(index != null) {
+            index = PathIndex.scan(root);
+        }
+    }
+
+    /**
+     * @return the path index or null if not enabled
+     */
+    public PathIndex index() {
+        return index;
+    }
+
+    /**
+     * @return the cache of parsed files
+     */
+    public ConfigCache cache() {
+        return cache;
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public FileSystem fileSystem() {
+        return fileSystem;
+    }
+
+    // -- private methods
+
+    /**
+     * @return the path of the file or null if it resolves outside of the root, e.g. a fact value containing
+     * <code>../</code>
+     */
+    private Path path(String file) {
         Path path = root.resolve(file);
-        if(Files.exists(path)) {
+        if(!path.toAbsolutePath().normalize().startsWith(normalizedRoot)) {
+            LOGGER.warning(() -> "Ignoring the config file '" + file + "' outside of the hiera root '" + root + "'");
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * @return the attributes of a regular file or null if the file does not exist or is outside of the root
+     */
+    private BasicFileAttributes attributes(Path path) {
+        if(path == null) {
+            return null;
+        }
+        PathIndex index = this.index;
+        if(index != null && !index.exists(path)) {
+            return null;
+        }
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the attributes of '" + path + "'", e);
+        }
+    }
+
+    private Config parse(Path path) {
+        LOGGER.fine("Parsing '" + path + "'");
+        if(fileSystem == FileSystems.getDefault()) {
+            // parsing the file supports includes relative to the file
             return ConfigFactory.parseFile(path.toFile());
-        } else {
-            // FIXME log warning "The facet value does not match a config file"
-            return ConfigFactory.empty();
+        }
+
+        ConfigParseOptions options = ConfigParseOptions.defaults()
+                .setSyntax(ConfigSyntax.CONF)
+                .setOriginDescription(path.toUri().toString());
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return ConfigFactory.parseReader(reader, options);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read '" + path.toUri() + "'", e);
+        }
+    }
+
+    /**
+     * Identifies a version of a file by its last modified time and size.
+     */
+    private static final class FileStamp {
+
+        private final FileTime lastModified;
+        private final long size;
+
+        private FileStamp(FileTime lastModified, long size) {
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof FileStamp)) return false;
+            FileStamp that = (FileStamp) o;
+            return size == that.size && lastModified.equals(that.lastModified);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * lastModified.hashCode() + Long.hashCode(size);
+        }
+    }
+
+    private static final class Fingerprint {
+
+        private final FileStamp stamp;
+        private final String hash;
+
+        private Fingerprint(FileStamp stamp, String hash) {
+            this.stamp = stamp;
+            this.hash = hash;
         }
     }
 
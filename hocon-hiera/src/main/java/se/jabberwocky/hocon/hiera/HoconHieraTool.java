@@ -0,0 +1,387 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigResolveOptions;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.System.exit;
+
+/**
+ * Renders the resolved configuration of every node of a fleet into an output directory.
+ * <p>
+ * The nodes are read from a facts matrix, a HOCON file listing the facts of each node by node name:
+ * <pre>
+ * nodes {
+ *   "web-1.acme.com" { groupId: com.acme, artifactId: shop, env: prd, hostname: web-1 }
+ *   "web-2.acme.com" { groupId: com.acme, artifactId: shop, env: prd, hostname: web-2 }
+ * }
+ * </pre>
+ * Each node is rendered to <code>&lt;node&gt;.conf</code>, or <code>&lt;node&gt;.json</code> if rendered as JSON, in
+ * the output directory. The {@link HoconHiera#fingerprint(Map) fingerprint} and format of each rendered node are
+ * recorded in a manifest and later runs only render the nodes whose layers have changed. The nodes are rendered in
+ * parallel on a fork join pool and each configuration is written to disk as soon as it has been rendered. The
+ * configurations are resolved against their layers only, not against the environment of the tool, i.e. the fingerprint
+ * covers all their input. The previous configuration of a node failing to render is deleted rather than left looking
+ * current.
+ */
+public class HoconHieraTool implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(HoconHieraTool.class.getName());
+
+    public static final String MANIFEST_FILE = ".hiera-manifest";
+    public static final String NODES_KEY = "nodes";
+
+    private static final int SUCCESS = 0;
+    private static final int OPTIONS_ERROR = 3;
+    private static final int RENDER_ERROR = 4;
+    private static final int UNHANDLED_EXCEPTION = 5;
+
+    // nodes rendered by a single fork join task
+    private static final int THRESHOLD = 4;
+
+    private static final OptionParser parser = new OptionParser();
+
+    private static final OptionSpec<File> rootSpec = parser.accepts(
+            "root", "Hiera root directory")
+            .withRequiredArg()
+            .required()
+            .ofType(File.class);
+
+    private static final OptionSpec<File> factsSpec = parser.accepts(
+            "facts", "Facts matrix listing the facts of each node")
+            .withRequiredArg()
+            .required()
+            .ofType(File.class);
+
+    private static final OptionSpec<File> outputSpec = parser.accepts(
+            "output", "Output directory of the rendered configurations")
+            .withRequiredArg()
+            .required()
+            .ofType(File.class);
+
+    private static final OptionSpec<Void> jsonSpec = parser.accepts(
+            "json", "Optionally render the configurations as JSON");
+
+    private static final OptionSpec<Void> forceSpec = parser.accepts(
+            "force", "Render all nodes, not only the nodes with changed layers");
+
+    private static final OptionSpec<Integer> parallelismSpec = parser.accepts(
+            "parallelism", "Number of nodes rendered in parallel")
+            .withRequiredArg()
+            .ofType(Integer.class)
+            .defaultsTo(Runtime.getRuntime().availableProcessors());
+
+    // -- fields
+
+    private final HoconHiera hiera;
+    private final Map<String, Map<String, String>> nodes;
+    private final Path output;
+    private final boolean json;
+    private final boolean force;
+    private final int parallelism;
+
+    private final LongAdder rendered = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+
+    /**
+     * @param hiera the hiera to render
+     * @param nodes the facts of each node by node name
+     * @param output the output directory
+     * @param json true to render JSON rather than HOCON
+     * @param force true to render all nodes regardless of the manifest
+     * @param parallelism the number of nodes rendered in parallel
+     */
+    public HoconHieraTool(HoconHiera hiera, Map<String, Map<String, String>> nodes, Path output,
+                          boolean json, boolean force, int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least one; found " + parallelism);
+        }
+        this.hiera = hiera;
+        this.nodes = nodes;
+        this.output = output;
+        this.json = json;
+        this.force = force;
+        this.parallelism = parallelism;
+    }
+
+    public static void main(String... args) throws IOException {
+        try {
+            OptionSet options = parser.parse(args);
+
+            HoconHieraFileSystem hiera = new HoconHieraFileSystem(options.valueOf(rootSpec).toPath())
+                    .withMergeTrie(MergeTrie.DEFAULT_MAX_NODES);
+            Map<String, Map<String, String>> nodes = nodes(options.valueOf(factsSpec).toPath());
+
+            HoconHieraTool tool = new HoconHieraTool(hiera, nodes, options.valueOf(outputSpec).toPath(),
+                    options.has(jsonSpec), options.has(forceSpec), options.valueOf(parallelismSpec));
+            tool.run();
+
+            System.err.println(tool);
+            exit(tool.failed() == 0 ? SUCCESS : RENDER_ERROR);
+        } catch(OptionException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printHelp();
+            exit(OPTIONS_ERROR);
+        } catch(Exception e) {
+            e.printStackTrace(System.err);
+            exit(UNHANDLED_EXCEPTION);
+        }
+    }
+
+    static void printHelp() throws IOException {
+        System.err.println();
+        System.err.println("HOCON Hiera Tool");
+        System.err.println();
+        parser.printHelpOn(System.err);
+    }
+
+    /**
+     * Read a facts matrix.
+     *
+     * @param file the facts matrix
+     * @return the facts of each node by node name
+     */
+    public static Map<String, Map<String, String>> nodes(Path file) {
+        Config matrix = ConfigFactory.parseFile(file.toFile()).resolve();
+        if(!matrix.hasPath(NODES_KEY)) {
+            throw new IllegalArgumentException("The facts matrix '" + file + "' has no '" + NODES_KEY + "'");
+        }
+        Map<String, Map<String, String>> nodes = new LinkedHashMap<>();
+        for(Map.Entry<String, ConfigValue> node : matrix.getObject(NODES_KEY).entrySet()) {
+            String name = node.getKey();
+            if(name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+                throw new IllegalArgumentException("Illegal node name '" + name + "' in '" + file + "'");
+            }
+            if(node.getValue().valueType() != ConfigValueType.OBJECT) {
+                throw new IllegalArgumentException("The facts of the node '" + name + "' are not an object");
+            }
+            Map<String, String> facts = new LinkedHashMap<>();
+            for(Map.Entry<String, ConfigValue> fact : ((ConfigObject) node.getValue()).entrySet()) {
+                facts.put(fact.getKey(), String.valueOf(fact.getValue().unwrapped()));
+            }
+            nodes.put(name, facts);
+        }
+        return nodes;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Files.createDirectories(output);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create the output directory '" + output + "'", e);
+        }
+
+        Map<String, String> previous = readManifest();
+        Map<String, String> manifest = new ConcurrentHashMap<>();
+
+        List<String> names = new ArrayList<>(nodes.keySet());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RenderTask(names, 0, names.size(), previous, manifest));
+        } finally {
+            pool.shutdown();
+        }
+
+        // remove the configurations of nodes no longer in the matrix
+        for(String name : previous.keySet()) {
+            if(!nodes.containsKey(name)) {
+                deleteOutput(name);
+                deleted.increment();
+            }
+        }
+
+        writeManifest(manifest);
+    }
+
+    /**
+     * @return the number of rendered nodes
+     */
+    public long rendered() {
+        return rendered.sum();
+    }
+
+    /**
+     * @return the number of nodes skipped as none of their layers changed
+     */
+    public long unchanged() {
+        return unchanged.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of deleted configurations of nodes removed from the matrix
+     */
+    public long deleted() {
+        return deleted.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "HoconHieraTool{rendered=" + rendered() + ", unchanged=" + unchanged()
+                + ", failed=" + failed() + ", deleted=" + deleted() + "}";
+    }
+
+    // -- private methods
+
+    private void render(String name, Map<String, String> previous, Map<String, String> manifest) {
+        Path file = file(name, json);
+        try {
+            Map<String, String> facts = nodes.get(name);
+            String fingerprint = hiera.fingerprint(facts) + (json ? "-json" : "-hocon");
+            if(!force && fingerprint.equals(previous.get(name)) && Files.exists(file)) {
+                manifest.put(name, fingerprint);
+                unchanged.increment();
+                return;
+            }
+
+            Config config = hiera.config(facts).resolve(ConfigResolveOptions.noSystem());
+            String rendered = config.root().render(ConfigRenderOptions.defaults()
+                    .setOriginComments(false)
+                    .setJson(json));
+            write(file, rendered);
+            // rendered in the other format before
+            delete(file(name, !json));
+
+            manifest.put(name, fingerprint);
+            this.rendered.increment();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not render the node '" + name + "'", e);
+            failed.increment();
+            try {
+                deleteOutput(name);
+            } catch (RuntimeException deleteFailed) {
+                LOGGER.log(Level.WARNING, "Could not delete the stale configuration of the node '" + name + "'",
+                        deleteFailed);
+            }
+        }
+    }
+
+    private Path file(String name, boolean json) {
+        return output.resolve(name + (json ? ".json" : ".conf"));
+    }
+
+    /**
+     * Delete the configuration of a node in either format.
+     */
+    private void deleteOutput(String name) {
+        delete(file(name, false));
+        delete(file(name, true));
+    }
+
+    private void write(Path file, String content) {
+        try {
+            Path temp = Files.createTempFile(output, file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write '" + file + "'", e);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not delete '" + file + "'", e);
+        }
+    }
+
+    private Map<String, String> readManifest() {
+        Map<String, String> manifest = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(output.resolve(MANIFEST_FILE), StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if(tab > 0) {
+                    manifest.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            LOGGER.info("No manifest in '" + output + "', rendering all nodes");
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the manifest of '" + output + "'", e);
+        }
+        return manifest;
+    }
+
+    private void writeManifest(Map<String, String> manifest) {
+        StringBuilder builder = new StringBuilder();
+        new TreeMap<>(manifest).forEach((name, fingerprint) ->
+                builder.append(name).append('\t').append(fingerprint).append('\n'));
+        write(output.resolve(MANIFEST_FILE), builder.toString());
+    }
+
+    /**
+     * Renders a range of nodes, splitting it in halves until it is small enough.
+     */
+    private final class RenderTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> names;
+        private final int from;
+        private final int to;
+        private final Map<String, String> previous;
+        private final Map<String, String> manifest;
+
+        private RenderTask(List<String> names, int from, int to,
+                           Map<String, String> previous, Map<String, String> manifest) {
+            this.names = names;
+            this.from = from;
+            this.to = to;
+            this.previous = previous;
+            this.manifest = manifest;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= THRESHOLD) {
+                for(int i = from; i < to; i++) {
+                    render(names.get(i), previous, manifest);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RenderTask(names, from, middle, previous, manifest),
+                    new RenderTask(names, middle, to, previous, manifest));
+        }
+    }
+}
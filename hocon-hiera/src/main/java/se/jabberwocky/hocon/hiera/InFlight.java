@@ -0,0 +1,63 @@
+package se.jabberwocky.hocon.hiera;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent asynchronous loads of the same key into a single in-flight future.
+ */
+final class InFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> futures = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Return a future of the in-flight load of the key or start a new load. Each caller gets its own dependent future,
+     * i.e. cancelling or completing it does not affect the other callers.
+     *
+     * @param key the key
+     * @param loader starts the load of the key
+     * @return a future completed by the load
+     */
+    CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> loader) {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = futures.putIfAbsent(key, created);
+        if(existing != null) {
+            coalesced.increment();
+            return existing.thenApply(Function.identity());
+        }
+
+        try {
+            loader.get().whenComplete((value, failure) -> {
+                futures.remove(key, created);
+                if(failure != null) {
+                    created.completeExceptionally(failure);
+                } else {
+                    created.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            futures.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created.thenApply(Function.identity());
+    }
+
+    /**
+     * @return the number of loads in flight
+     */
+    int size() {
+        return futures.size();
+    }
+
+    /**
+     * @return the number of calls joining a load already in flight
+     */
+    long coalesced() {
+        return coalesced.sum();
+    }
+}
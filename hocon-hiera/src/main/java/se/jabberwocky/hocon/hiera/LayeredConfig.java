@@ -0,0 +1,323 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigList;
+import com.typesafe.config.ConfigMemorySize;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigResolveOptions;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lazy view of the layers of a hierarchy as a single configuration, returned by {@link HoconHiera#layered(Map)}.
+ * <p>
+ * Each path is looked up top-down through the layers on first access and memoized, with the same result as in the
+ * merged configuration. The layers are merged in full only by {@link #toConfig()} and for the paths depending on a
+ * substitution, resolved on first access if the view was {@link #resolve() resolved}.
+ */
+public final class LayeredConfig {
+
+    private final List<Config> layers;
+    private final ConfigResolveOptions resolveOptions;
+    private final Map<String, Config> paths = new ConcurrentHashMap<>();
+    private volatile Config merged;
+
+    /**
+     * @param layers the layers in order of increasing precedence, as merged by {@link HoconHiera#merge(List, List)}
+     */
+    public LayeredConfig(List<Config> layers) {
+        this(layers, null);
+    }
+
+    private LayeredConfig(List<Config> layers, ConfigResolveOptions resolveOptions) {
+        List<Config> topDown = new ArrayList<>(layers);
+        Collections.reverse(topDown);
+        this.layers = Collections.unmodifiableList(topDown);
+        this.resolveOptions = resolveOptions;
+    }
+
+    /**
+     * @return true if the layers have been merged in full
+     */
+    public boolean isMerged() {
+        return merged != null;
+    }
+
+    /**
+     * @return the number of paths looked up
+     */
+    public int lookups() {
+        return paths.size();
+    }
+
+    // -- lazily looked up paths
+
+    public boolean hasPath(String path) {
+        return lookup(path).hasPath(path);
+    }
+
+    public boolean hasPathOrNull(String path) {
+        return lookup(path).hasPathOrNull(path);
+    }
+
+    public boolean getIsNull(String path) {
+        return lookup(path).getIsNull(path);
+    }
+
+    public boolean getBoolean(String path) {
+        return lookup(path).getBoolean(path);
+    }
+
+    public Number getNumber(String path) {
+        return lookup(path).getNumber(path);
+    }
+
+    public int getInt(String path) {
+        return lookup(path).getInt(path);
+    }
+
+    public long getLong(String path) {
+        return lookup(path).getLong(path);
+    }
+
+    public double getDouble(String path) {
+        return lookup(path).getDouble(path);
+    }
+
+    public String getString(String path) {
+        return lookup(path).getString(path);
+    }
+
+    public ConfigObject getObject(String path) {
+        return lookup(path).getObject(path);
+    }
+
+    public Config getConfig(String path) {
+        return lookup(path).getConfig(path);
+    }
+
+    public Object getAnyRef(String path) {
+        return lookup(path).getAnyRef(path);
+    }
+
+    public ConfigValue getValue(String path) {
+        return lookup(path).getValue(path);
+    }
+
+    public Long getBytes(String path) {
+        return lookup(path).getBytes(path);
+    }
+
+    public ConfigMemorySize getMemorySize(String path) {
+        return lookup(path).getMemorySize(path);
+    }
+
+    public long getDuration(String path, TimeUnit unit) {
+        return lookup(path).getDuration(path, unit);
+    }
+
+    public Duration getDuration(String path) {
+        return lookup(path).getDuration(path);
+    }
+
+    public ConfigList getList(String path) {
+        return lookup(path).getList(path);
+    }
+
+    public List<Boolean> getBooleanList(String path) {
+        return lookup(path).getBooleanList(path);
+    }
+
+    public List<Number> getNumberList(String path) {
+        return lookup(path).getNumberList(path);
+    }
+
+    public List<Integer> getIntList(String path) {
+        return lookup(path).getIntList(path);
+    }
+
+    public List<Long> getLongList(String path) {
+        return lookup(path).getLongList(path);
+    }
+
+    public List<Double> getDoubleList(String path) {
+        return lookup(path).getDoubleList(path);
+    }
+
+    public List<String> getStringList(String path) {
+        return lookup(path).getStringList(path);
+    }
+
+    public List<? extends ConfigObject> getObjectList(String path) {
+        return lookup(path).getObjectList(path);
+    }
+
+    public List<? extends Config> getConfigList(String path) {
+        return lookup(path).getConfigList(path);
+    }
+
+    public List<? extends Object> getAnyRefList(String path) {
+        return lookup(path).getAnyRefList(path);
+    }
+
+    public List<Long> getBytesList(String path) {
+        return lookup(path).getBytesList(path);
+    }
+
+    public List<ConfigMemorySize> getMemorySizeList(String path) {
+        return lookup(path).getMemorySizeList(path);
+    }
+
+    public List<Long> getDurationList(String path, TimeUnit unit) {
+        return lookup(path).getDurationList(path, unit);
+    }
+
+    public List<Duration> getDurationList(String path) {
+        return lookup(path).getDurationList(path);
+    }
+
+    // -- resolving
+
+    /**
+     * @return true if the view was resolved or none of the layers contain substitutions
+     */
+    public boolean isResolved() {
+        return resolveOptions != null || layers.stream().allMatch(Config::isResolved);
+    }
+
+    /**
+     * @see #resolve(ConfigResolveOptions)
+     */
+    public LayeredConfig resolve() {
+        return resolve(ConfigResolveOptions.defaults());
+    }
+
+    /**
+     * Return a view resolving the paths depending on substitutions on first access, or this view if none of the layers
+     * contain substitutions.
+     */
+    public LayeredConfig resolve(ConfigResolveOptions options) {
+        if(isResolved()) {
+            return this;
+        }
+        List<Config> bottomUp = new ArrayList<>(layers);
+        Collections.reverse(bottomUp);
+        return new LayeredConfig(bottomUp, options);
+    }
+
+    // -- the merged configuration
+
+    /**
+     * Return the layers merged, and resolved if the view was resolved, e.g. to merge or resolve the configuration with
+     * another one. The layers are merged once on the first call.
+     *
+     * @return the merged configuration
+     */
+    public Config toConfig() {
+        return merged();
+    }
+
+    /**
+     * The merged configuration is empty if and only if all layers are, no merge required.
+     */
+    public boolean isEmpty() {
+        return layers.stream().allMatch(Config::isEmpty);
+    }
+
+    @Override
+    public String toString() {
+        return "LayeredConfig{layers=" + layers.size() + ", lookups=" + lookups() + ", merged=" + isMerged() + "}";
+    }
+
+    // -- private methods
+
+    private Config merged() {
+        Config merged = this.merged;
+        if(merged == null) {
+            synchronized (this) {
+                merged = this.merged;
+                if(merged == null) {
+                    merged = ConfigFactory.empty();
+                    for(Config layer : layers) {
+                        merged = merged.withFallback(layer);
+                    }
+                    if(resolveOptions != null) {
+                        merged = merged.resolve(resolveOptions);
+                    }
+                    this.merged = merged;
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Return a configuration holding only the value of the path, or the merged configuration if the value depends on
+     * a substitution.
+     */
+    private Config lookup(String path) {
+        Config config = paths.get(path);
+        if(config == null) {
+            config = find(path);
+            paths.putIfAbsent(path, config);
+        }
+        return config;
+    }
+
+    private Config find(String path) {
+        List<String> segments = ConfigUtil.splitPath(path);
+        List<ConfigObject> objects = new ArrayList<>();
+
+        for(Config layer : layers) {
+            ConfigValue value = layer.root();
+            int depth = 0;
+            try {
+                while(depth < segments.size() && value instanceof ConfigObject) {
+                    value = ((ConfigObject) value).get(segments.get(depth++));
+                }
+            } catch (ConfigException.NotResolved e) {
+                return merged();
+            }
+
+            if(value == null) {
+                // not in this layer
+                continue;
+            }
+            if(!resolved(value)) {
+                // a substitution may resolve to anything, e.g. an object merged with the layers below
+                return merged();
+            }
+            if(depth < segments.size() || !(value instanceof ConfigObject)) {
+                // a value hides the layers below, an ancestor that is not an object hides the path too
+                if(objects.isEmpty()) {
+                    return value.atPath(ConfigUtil.joinPath(segments.subList(0, depth)));
+                }
+                break;
+            }
+            objects.add((ConfigObject) value);
+        }
+
+        if(objects.isEmpty()) {
+            return ConfigFactory.empty();
+        }
+        ConfigObject object = objects.get(0);
+        for(int i = 1; i < objects.size(); i++) {
+            object = object.withFallback(objects.get(i));
+        }
+        return resolved(object) ? object.atPath(path) : merged();
+    }
+
+    private static boolean resolved(ConfigValue value) {
+        return value.atKey("value").isResolved();
+    }
+}
@@ -0,0 +1,138 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Support for merging the layers of a hierarchy.
+ */
+final class Layers {
+
+    private Layers() {
+    }
+
+    /**
+     * Merge layers in order of increasing precedence, i.e. each layer falls back on the layers before it.
+     *
+     * @param layers the layers to merge
+     * @return the merged config
+     */
+    static Config merge(List<Config> layers) {
+        Config merged = ConfigFactory.empty();
+        for(Config layer : layers) {
+            merged = layer.withFallback(merged);
+        }
+        return merged;
+    }
+
+    /**
+     * Merge the subtree at a path of the layers, the result holds the subtree at its path. Only the subtree is taken
+     * from each layer, unless a layer holds a substitution at or above the path: a substitution may resolve to
+     * anything, e.g. an object merged with the layers below, so the subtree is then taken from the full merge.
+     *
+     * @param layers the layers in order of increasing precedence
+     * @param path the path of the subtree
+     * @return the merged subtree
+     */
+    static Config subtree(List<Config> layers, String path) {
+        List<Config> subtrees = subtrees(layers, path);
+        if(subtrees != null) {
+            return merge(subtrees);
+        }
+
+        Config merged = merge(layers);
+        List<String> segments = ConfigUtil.splitPath(path);
+        ConfigValue value = merged.root();
+        int depth = 0;
+        try {
+            while(depth < segments.size() && value instanceof ConfigObject) {
+                value = ((ConfigObject) value).get(segments.get(depth));
+                depth++;
+            }
+        } catch (ConfigException.NotResolved e) {
+            // the object at the depth is unresolved
+        }
+        return depth == 0 ? merged : merged.withOnlyPath(ConfigUtil.joinPath(segments.subList(0, depth)));
+    }
+
+    /**
+     * Take the subtree at a path from each layer, dropping the layers hidden by a higher layer setting the path or
+     * any of its ancestors to a value other than an object.
+     *
+     * @param layers the layers in order of increasing precedence
+     * @param path the path of the subtree
+     * @return the subtrees at their path in order of increasing precedence, or null if a layer holds a substitution
+     * at or above the path
+     */
+    private static List<Config> subtrees(List<Config> layers, String path) {
+        List<String> segments = ConfigUtil.splitPath(path);
+        LinkedList<Config> subtrees = new LinkedList<>();
+        for(int i = layers.size() - 1; i >= 0; i--) {
+            ConfigValue value = layers.get(i).root();
+            int depth = 0;
+            try {
+                while(depth < segments.size() && value instanceof ConfigObject) {
+                    value = ((ConfigObject) value).get(segments.get(depth++));
+                }
+            } catch (ConfigException.NotResolved e) {
+                return null;
+            }
+            if(value == null) {
+                continue;
+            }
+            if(!resolvable(value)) {
+                return null;
+            }
+            if(depth < segments.size()) {
+                // an ancestor is not an object
+                break;
+            }
+            subtrees.addFirst(value.atPath(path));
+            if(!(value instanceof ConfigObject)) {
+                break;
+            }
+        }
+        return subtrees;
+    }
+
+    /**
+     * Return false if the value is a substitution or merges one, rather than merely containing one.
+     */
+    private static boolean resolvable(ConfigValue value) {
+        try {
+            value.valueType();
+            if(value instanceof ConfigObject) {
+                ((ConfigObject) value).keySet();
+            }
+            return true;
+        } catch (ConfigException.NotResolved e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wait for a future, rethrowing the cause of a failure as is if it is unchecked.
+     */
+    static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if(e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Trie memoizing the merged prefixes of hierarchies keyed by the layer paths. Hierarchies sharing their leading
+ * layers, e.g. nodes of the same application and environment, reuse the merge of the shared prefix and only merge
+ * the layers that differ.
+ * <p>
+ * Each node remembers the layer instance it was merged with and is only reused for the identical instance, i.e. a
+ * layer that has been parsed again invalidates the node and all nodes below it. The trie is bounded by the number
+ * of nodes and evicts the least recently used nodes first.
+ */
+public final class MergeTrie {
+
+    public static final int DEFAULT_MAX_NODES = 4096;
+
+    private final int maxNodes;
+    private final Node root = new Node(null, null, null, ConfigFactory.empty());
+    private final LinkedHashSet<Node> nodes = new LinkedHashSet<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MergeTrie() {
+        this(DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * @param maxNodes the maximum number of merged prefixes kept in the trie
+     */
+    public MergeTrie(int maxNodes) {
+        if(maxNodes < 1) {
+            throw new IllegalArgumentException("The trie must hold at least one node; found " + maxNodes);
+        }
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Merge the layers in order of increasing precedence reusing the longest memoized prefix.
+     *
+     * @param paths the paths of the layers
+     * @param layers the layers of the paths
+     * @return the merged config
+     */
+    public Config merge(List<String> paths, List<Config> layers) {
+        if(paths.size() != layers.size()) {
+            throw new IllegalArgumentException("Expected one layer per path; found "
+                    + layers.size() + " layers for " + paths.size() + " paths");
+        }
+
+        // find the longest memoized prefix
+        Node prefix = root;
+        int depth = 0;
+        synchronized (this) {
+            while(depth < paths.size()) {
+                Node child = prefix.children.get(paths.get(depth));
+                if(child == null || child.layer != layers.get(depth)) {
+                    break;
+                }
+                prefix = child;
+                depth++;
+            }
+        }
+        hits.add(depth);
+        misses.add(paths.size() - depth);
+
+        // merge the remaining layers outside the lock
+        Config[] merged = new Config[paths.size()];
+        Config config = prefix.merged;
+        for(int i = depth; i < paths.size(); i++) {
+            config = layers.get(i).withFallback(config);
+            merged[i] = config;
+        }
+
+        synchronized (this) {
+            Node node = prefix;
+            for(int i = depth; i < paths.size() && !node.detached; i++) {
+                Node child = new Node(node, paths.get(i), layers.get(i), merged[i]);
+                Node replaced = node.children.put(child.path, child);
+                if(replaced != null) {
+                    detach(replaced);
+                }
+                nodes.add(child);
+                node = child;
+            }
+            touch(node);
+            evict();
+        }
+
+        return config;
+    }
+
+    /**
+     * Remove all memoized prefixes.
+     */
+    public synchronized void clear() {
+        root.children.values().forEach(this::detach);
+        root.children.clear();
+    }
+
+    /**
+     * @return the number of layers whose merge was reused
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of layers that had to be merged
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "MergeTrie{size=" + size() + "/" + maxNodes
+                + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "}";
+    }
+
+    // -- private methods
+
+    /**
+     * Mark the node and its ancestors as most recently used, leaf first so that ancestors are always more recently
+     * used than their descendants and the least recently used node is a leaf.
+     */
+    private void touch(Node node) {
+        while(node != root && !node.detached) {
+            nodes.remove(node);
+            nodes.add(node);
+            node = node.parent;
+        }
+    }
+
+    private void evict() {
+        Iterator<Node> iterator = nodes.iterator();
+        while(nodes.size() > maxNodes && iterator.hasNext()) {
+            Node eldest = iterator.next();
+            iterator.remove();
+            eldest.parent.children.remove(eldest.path, eldest);
+            eldest.detached = true;
+            eldest.children.values().forEach(this::detach);
+            evictions.increment();
+            // the iterator is invalidated if descendants were detached
+            iterator = nodes.iterator();
+        }
+    }
+
+    private void detach(Node node) {
+        node.detached = true;
+        nodes.remove(node);
+        node.children.values().forEach(this::detach);
+    }
+
+    private static final class Node {
+
+        private final Node parent;
+        private final String path;
+        private final Config layer;
+        private final Config merged;
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean detached;
+
+        private Node(Node parent, String path, Config layer, Config merged) {
+            this.parent = parent;
+            this.path = path;
+            this.layer = layer;
+            this.merged = merged;
+        }
+    }
+}
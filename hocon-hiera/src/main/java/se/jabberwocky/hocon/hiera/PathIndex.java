@@ -0,0 +1,181 @@
+package se.jabberwocky.hocon.hiera;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index of the files found below a root directory. Existence checks against the index never touch the
+ * file system. The index is refreshed incrementally by only rescanning directories whose modification time has
+ * changed since they were last scanned.
+ */
+public final class PathIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(PathIndex.class.getName());
+
+    private final Path root;
+    private final Map<Path, Directory> directories = new ConcurrentHashMap<>();
+
+    private PathIndex(Path root) {
+        this.root = root.normalize();
+    }
+
+    /**
+     * Scan all files below the root directory into a new index.
+     *
+     * @param root the root directory
+     * @return the index of the root directory
+     */
+    public static PathIndex scan(Path root) {
+        PathIndex index = new PathIndex(root);
+        index.scanDirectory(index.root);
+        return index;
+    }
+
+    /**
+     * @param path the path of a file below the root directory
+     * @return true if the file was found when its directory was last scanned
+     */
+    public boolean exists(Path path) {
+        Path normalized = path.normalize();
+        Path parent = normalized.getParent();
+        if(parent == null) {
+            return false;
+        }
+        Directory directory = directories.get(parent);
+        return directory != null && directory.files.contains(normalized.getFileName().toString());
+    }
+
+    /**
+     * Rescan all directories whose modification time has changed since they were last scanned.
+     *
+     * @return the number of rescanned directories
+     */
+    public int refresh() {
+        int rescanned = 0;
+        for(Map.Entry<Path, Directory> entry : new ArrayList<>(directories.entrySet())) {
+            if(!directories.containsKey(entry.getKey())) {
+                // removed while rescanning a parent directory
+                continue;
+            }
+            FileTime lastModified = lastModified(entry.getKey());
+            if(!entry.getValue().lastModified.equals(lastModified)) {
+                rescanned += refresh(entry.getKey());
+            }
+        }
+        return rescanned;
+    }
+
+    /**
+     * Rescan a single directory, e.g. after having been notified that it has changed.
+     *
+     * @param directory the directory to rescan
+     * @return the number of rescanned directories
+     */
+    public int refresh(Path directory) {
+        Path normalized = directory.normalize();
+        if(!normalized.startsWith(root)) {
+            return 0;
+        }
+        if(Files.isDirectory(normalized)) {
+            return scanDirectory(normalized);
+        } else {
+            remove(normalized);
+            return 1;
+        }
+    }
+
+    /**
+     * @return the number of indexed directories
+     */
+    public int directories() {
+        return directories.size();
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    // -- private methods
+
+    private int scanDirectory(Path path) {
+        Set<String> files = new HashSet<>();
+        Set<String> subdirectories = new HashSet<>();
+        FileTime lastModified = lastModified(path);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for(Path child : stream) {
+                String name = child.getFileName().toString();
+                if(Files.isDirectory(child)) {
+                    subdirectories.add(name);
+                } else {
+                    files.add(name);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            remove(path);
+            return 1;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not scan the directory '" + path + "'", e);
+        }
+
+        Directory previous = directories.put(path, new Directory(lastModified, files, subdirectories));
+        LOGGER.fine("Indexed " + files.size() + " files in '" + path + "'");
+
+        int scanned = 1;
+        if(previous != null) {
+            for(String name : previous.subdirectories) {
+                if(!subdirectories.contains(name)) {
+                    remove(path.resolve(name));
+                }
+            }
+        }
+        for(String name : subdirectories) {
+            Path subdirectory = path.resolve(name);
+            // new directories are scanned, existing ones are left to the mtime check
+            if(!directories.containsKey(subdirectory)) {
+                scanned += scanDirectory(subdirectory);
+            }
+        }
+        return scanned;
+    }
+
+    private void remove(Path path) {
+        Directory removed = directories.remove(path);
+        if(removed != null) {
+            removed.subdirectories.forEach(name -> remove(path.resolve(name)));
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime();
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static final class Directory {
+
+        private final FileTime lastModified;
+        private final Set<String> files;
+        private final Set<String> subdirectories;
+
+        private Directory(FileTime lastModified, Set<String> files, Set<String> subdirectories) {
+            this.lastModified = lastModified;
+            this.files = Collections.unmodifiableSet(files);
+            this.subdirectories = Collections.unmodifiableSet(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * HOCON Hiera that watches the root of a {@link HoconHieraFileSystem} and all of its layer directories for changes.
+ * Bursts of changes are debounced before the affected files are dropped from the cache and the registered
+ * listeners are notified of the changed paths.
+ * <p>
+ * If the watch service overflows and individual changes are lost all cached files are dropped and the listeners are
+ * notified of a change to the {@link HoconHiera#HIERA_CONFIG_FILE}, i.e. a change that invalidates
+ * everything derived from the hiera.
+ */
+public class ReloadingHoconHiera implements HoconHiera, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReloadingHoconHiera.class.getName());
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+    private final HoconHieraFileSystem hiera;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final List<HieraChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+
+    public ReloadingHoconHiera(HoconHieraFileSystem hiera) {
+        this(hiera, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * @param hiera the hiera to watch
+     * @param debounceMillis the time to wait for further changes before the collected changes are published
+     */
+    public ReloadingHoconHiera(HoconHieraFileSystem hiera, long debounceMillis) {
+        this.hiera = hiera;
+        this.debounceMillis = debounceMillis;
+        try {
+            this.watchService = hiera.root().getFileSystem().newWatchService();
+            register(hiera.root());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not watch the hiera root '" + hiera.root() + "'", e);
+        }
+
+        this.thread = new Thread(this::watch, "hiera-watcher-" + hiera.root().getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public Config hiera() {
+        return hiera.hiera();
+    }
+
+    @Override
+    public Hierarchy hierarchy() {
+        return hiera.hierarchy();
+    }
+
+    @Override
+    public Config config(String path) {
+        return hiera.config(path);
+    }
+
+    @Override
+    public String fingerprint(String path) {
+        return hiera.fingerprint(path);
+    }
+
+    @Override
+    public long size(String path) {
+        return hiera.size(path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return hiera.exists(path);
+    }
+
+    @Override
+    public HieraMetrics metrics() {
+        return hiera.metrics();
+    }
+
+    @Override
+    public Config merge(List<String> paths, List<Config> layers) {
+        return hiera.merge(paths, layers);
+    }
+
+    @Override
+    public CompletableFuture<Config> configAsync(Map<String, String> facts, Executor executor) {
+        return hiera.configAsync(facts, executor);
+    }
+
+    /**
+     * Register a listener notified with the set of changed paths after each debounced burst of changes.
+     *
+     * @param listener the listener to register
+     * @return <code>this</code> for a fluent interface
+     */
+    public ReloadingHoconHiera addListener(HieraChangeListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public ReloadingHoconHiera removeListener(HieraChangeListener listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * @return the watched hiera
+     */
+    public HoconHieraFileSystem delegate() {
+        return hiera;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+
+    // -- private methods
+
+    private void watch() {
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean overflow = collect(watchService.take(), changed);
+
+                // debounce until no further changes arrive within the debounce period
+                WatchKey key;
+                while((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(key, changed);
+                }
+
+                publish(changed, overflow);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.fine("Stopped watching '" + hiera.root() + "'");
+        }
+    }
+
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        Path directory = directories.get(key);
+
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                overflow = true;
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            changed.add(path);
+
+            if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // files may have been created before the new directory was registered
+                try (Stream<Path> files = Files.walk(path)) {
+                    register(path);
+                    files.forEach(changed::add);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not watch the directory '" + path + "'", e);
+                }
+            }
+        }
+
+        if(!key.reset()) {
+            directories.remove(key);
+        }
+        return overflow;
+    }
+
+    private void publish(Set<Path> changed, boolean overflow) {
+        Set<String> paths = new LinkedHashSet<>();
+        try {
+            if(overflow) {
+                LOGGER.warning("Lost changes to '" + hiera.root() + "', dropping all cached files");
+                hiera.invalidateAll();
+                paths.add(HIERA_CONFIG_FILE);
+            } else {
+                changed.forEach(path -> paths.add(relativize(path)));
+                hiera.invalidate(paths);
+            }
+        } catch (RuntimeException e) {
+            // e.g. rescanning a directory deleted in the meantime, the watch thread must survive to keep reloading
+            LOGGER.log(Level.WARNING, "Could not invalidate the changed files of '" + hiera.root()
+                    + "', dropping all cached files", e);
+            paths.clear();
+            paths.add(HIERA_CONFIG_FILE);
+            try {
+                hiera.invalidateAll();
+            } catch (RuntimeException again) {
+                LOGGER.log(Level.WARNING, "Could not drop the cached files of '" + hiera.root() + "'", again);
+            }
+        }
+
+        if(paths.isEmpty()) {
+            return;
+        }
+
+        LOGGER.fine("Changed files in '" + hiera.root() + "': " + paths);
+        Set<String> unmodifiable = Collections.unmodifiableSet(paths);
+        for(HieraChangeListener listener : listeners) {
+            try {
+                listener.changed(unmodifiable);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Hiera change listener failed", e);
+            }
+        }
+    }
+
+    private void register(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for(Path directory : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                WatchKey key = directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, directory);
+            }
+        }
+    }
+
+    private String relativize(Path path) {
+        StringBuilder builder = new StringBuilder();
+        for(Path name : hiera.root().relativize(path)) {
+            if(builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+}
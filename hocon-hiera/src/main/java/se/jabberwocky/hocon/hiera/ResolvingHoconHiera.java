@@ -0,0 +1,470 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HOCON Hiera decorator resolving the configuration of each set of facts once, rather than every consumer resolving
+ * the merged configuration again.
+ * <p>
+ * The merged configuration is resolved with the overrides, by default the system properties, taking precedence and
+ * the facts as a fallback, i.e. a layer may reference a fact such as <code>${hostname}</code>. Unlike resolving
+ * {@link HoconHiera#config(Map)} a substitution of a fact is thus resolved, the facts themselves are not part of the
+ * resolved configuration unless a layer sets them too. Each resolution keeps
+ * the substitutions referenced by every key of the merged configuration. Register the decorator as a listener of a
+ * {@link ReloadingHoconHiera}, after any caching decorator it wraps, to update the resolved configurations depending
+ * on a changed layer: only the keys whose merged value changed and the keys referencing them, directly or through
+ * other keys, are resolved again. A configuration is resolved in full if its substitutions cannot be tracked, e.g.
+ * self-referential substitutions, or if most of its keys are affected.
+ */
+public class ResolvingHoconHiera implements HoconHiera, HieraChangeListener {
+
+    private static final Logger LOGGER = Logger.getLogger(ResolvingHoconHiera.class.getName());
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final Pattern SUBSTITUTION = Pattern.compile("\\$\\{\\??([^}]*)}");
+    private static final ConfigRenderOptions RENDER_OPTIONS = ConfigRenderOptions.concise();
+
+    private final HoconHiera hiera;
+    private final Config overrides;
+    private final int maxSize;
+    private final LinkedHashMap<Map<String, String>, Resolution> resolutions = new LinkedHashMap<>(16, 0.75f, true);
+    // incremented on every invalidation so that resolutions computed before are not cached
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder fullResolutions = new LongAdder();
+    private final LongAdder partialResolutions = new LongAdder();
+    private final LongAdder resolvedKeys = new LongAdder();
+
+    public ResolvingHoconHiera(HoconHiera hiera) {
+        this(hiera, ConfigFactory.systemProperties(), DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param hiera the decorated hiera
+     * @param overrides the configuration taking precedence over all layers, e.g. the system properties
+     * @param maxSize the maximum number of resolved configurations kept
+     */
+    public ResolvingHoconHiera(HoconHiera hiera, Config overrides, int maxSize) {
+        if(maxSize < 1) {
+            throw new IllegalArgumentException("The max size must be at least one; found " + maxSize);
+        }
+        this.hiera = hiera;
+        this.overrides = overrides;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public Config hiera() {
+        return hiera.hiera();
+    }
+
+    @Override
+    public Hierarchy hierarchy() {
+        return hiera.hierarchy();
+    }
+
+    @Override
+    public Config config(String path) {
+        return hiera.config(path);
+    }
+
+    @Override
+    public String fingerprint(String path) {
+        return hiera.fingerprint(path);
+    }
+
+    @Override
+    public long size(String path) {
+        return hiera.size(path);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return hiera.exists(path);
+    }
+
+    @Override
+    public HieraMetrics metrics() {
+        return hiera.metrics();
+    }
+
+    @Override
+    public Config merge(List<String> paths, List<Config> layers) {
+        return hiera.merge(paths, layers);
+    }
+
+    /**
+     * Return the resolved configuration, resolving it on the first lookup of the facts.
+     */
+    @Override
+    public Config config(Map<String, String> facts) {
+        long start = System.nanoTime();
+        Map<String, String> key = Collections.unmodifiableMap(new HashMap<>(facts));
+
+        long generation;
+        synchronized (resolutions) {
+            Resolution resolution = resolutions.get(key);
+            if(resolution != null) {
+                // misses are reported by the decorated hiera
+                hits.increment();
+                metrics().lookup(System.nanoTime() - start);
+                return resolution.config;
+            }
+            generation = this.generation;
+        }
+
+        misses.increment();
+        Resolution resolution = resolve(key);
+        put(resolution, generation);
+        return resolution.config;
+    }
+
+    /**
+     * Update the resolved configurations depending on any of the changed paths, or drop all of them if the hiera
+     * config itself has changed.
+     *
+     * @param paths the changed paths
+     */
+    @Override
+    public void changed(Set<String> paths) {
+        if(paths.contains(HIERA_CONFIG_FILE)) {
+            invalidateAll();
+            return;
+        }
+
+        List<Resolution> affected = new ArrayList<>();
+        long generation;
+        synchronized (resolutions) {
+            this.generation++;
+            generation = this.generation;
+            Iterator<Resolution> iterator = resolutions.values().iterator();
+            while(iterator.hasNext()) {
+                Resolution resolution = iterator.next();
+                if(resolution.paths.stream().anyMatch(paths::contains)) {
+                    iterator.remove();
+                    affected.add(resolution);
+                }
+            }
+        }
+
+        for(Resolution resolution : affected) {
+            try {
+                put(update(resolution), generation);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not resolve the configuration of " + resolution.facts, e);
+            }
+        }
+    }
+
+    /**
+     * Drop all resolved configurations.
+     */
+    public void invalidateAll() {
+        synchronized (resolutions) {
+            generation++;
+            resolutions.clear();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of configurations resolved in full
+     */
+    public long fullResolutions() {
+        return fullResolutions.sum();
+    }
+
+    /**
+     * @return the number of configurations updated by resolving only the keys affected by a change
+     */
+    public long partialResolutions() {
+        return partialResolutions.sum();
+    }
+
+    /**
+     * @return the number of keys resolved by partial resolutions
+     */
+    public long resolvedKeys() {
+        return resolvedKeys.sum();
+    }
+
+    public int size() {
+        synchronized (resolutions) {
+            return resolutions.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResolvingHoconHiera{size=" + size() + "/" + maxSize + ", hits=" + hits() + ", misses=" + misses()
+                + ", fullResolutions=" + fullResolutions() + ", partialResolutions=" + partialResolutions() + "}";
+    }
+
+    // -- private methods
+
+    private Resolution resolve(Map<String, String> facts) {
+        List<String> paths = hierarchy().paths(facts);
+        Config merged = overrides.withFallback(hiera.config(facts));
+        return resolve(facts, paths, merged);
+    }
+
+    private Resolution resolve(Map<String, String> facts, List<String> paths, Config merged) {
+        Config config = resolve(merged, facts);
+        fullResolutions.increment();
+        return new Resolution(facts, paths, merged, config);
+    }
+
+    /**
+     * Resolve only the keys affected by the changes of the merged configuration, i.e. the changed keys and the keys
+     * referencing them, and replace them in the previous resolved configuration.
+     */
+    private Resolution update(Resolution previous) {
+        Map<String, String> facts = previous.facts;
+        List<String> paths = hierarchy().paths(facts);
+        Config merged = overrides.withFallback(hiera.config(facts));
+        Resolution resolution = new Resolution(facts, paths, merged, null);
+
+        Set<String> changed = new HashSet<>(previous.leaves.keySet());
+        changed.addAll(resolution.leaves.keySet());
+        changed.removeIf(path -> Objects.equals(previous.leaves.get(path), resolution.leaves.get(path)));
+        if(changed.isEmpty()) {
+            return new Resolution(facts, paths, merged, previous.config);
+        }
+        if(resolution.dependencies == null || resolution.selfReferential) {
+            return resolve(facts, paths, merged);
+        }
+
+        Set<String> affected = affected(resolution.dependencies, changed);
+        if(affected.size() * 2 > resolution.leaves.size()) {
+            return resolve(facts, paths, merged);
+        }
+
+        Config config = previous.config;
+        Config partial = ConfigFactory.empty();
+        for(String path : affected) {
+            ConfigValue value = resolution.leaves.get(path);
+            if(value == null) {
+                config = config.withoutPath(missing(merged, path));
+            } else {
+                partial = partial.withValue(path, value);
+            }
+        }
+        // no key references itself, the keys can be resolved against the merged configuration as another root
+        partial = partial.resolveWith(merged.withFallback(facts(facts)));
+        for(String path : affected) {
+            ConfigValue value = find(partial.root(), ConfigUtil.splitPath(path));
+            if(value != null) {
+                config = config.withValue(path, value);
+            } else if(resolution.leaves.containsKey(path)) {
+                // resolved to nothing, e.g. an optional substitution of a removed key
+                config = config.withoutPath(path);
+            }
+        }
+
+        partialResolutions.increment();
+        resolvedKeys.add(affected.size());
+        return new Resolution(facts, paths, merged, config);
+    }
+
+    /**
+     * The changed keys and the keys referencing any of them, directly or indirectly.
+     */
+    private static Set<String> affected(Map<String, List<List<String>>> dependencies, Set<String> changed) {
+        Set<String> affected = new HashSet<>(changed);
+        List<List<String>> segments = new ArrayList<>();
+        changed.forEach(path -> segments.add(ConfigUtil.splitPath(path)));
+
+        boolean grown = true;
+        while(grown) {
+            grown = false;
+            for(Map.Entry<String, List<List<String>>> entry : dependencies.entrySet()) {
+                if(!affected.contains(entry.getKey()) && overlaps(entry.getValue(), segments)) {
+                    affected.add(entry.getKey());
+                    segments.add(ConfigUtil.splitPath(entry.getKey()));
+                    grown = true;
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * A reference overlaps a path if either is a prefix of the other, e.g. a reference to an object overlaps the keys
+     * of the object.
+     */
+    private static boolean overlaps(List<List<String>> references, List<List<String>> paths) {
+        for(List<String> reference : references) {
+            for(List<String> path : paths) {
+                int length = Math.min(reference.size(), path.size());
+                if(reference.subList(0, length).equals(path.subList(0, length))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolve the merged configuration with the facts as a fallback and drop the facts it does not set. The facts are
+     * merged into the configuration rather than resolved against, as Typesafe Config cannot resolve a
+     * self-referential merge against another root.
+     */
+    private static Config resolve(Config merged, Map<String, String> facts) {
+        ConfigObject resolved = merged.withFallback(facts(facts)).resolve().root();
+        for(String fact : facts.keySet()) {
+            if(!merged.root().containsKey(fact)) {
+                resolved = resolved.withoutKey(fact);
+            }
+        }
+        return resolved.toConfig();
+    }
+
+    private static Config facts(Map<String, String> facts) {
+        return ConfigValueFactory.fromMap(facts, "hiera facts").toConfig();
+    }
+
+    /**
+     * The shortest prefix of a removed key missing from the merged configuration, e.g. the removed object containing
+     * the key.
+     */
+    private static String missing(Config merged, String path) {
+        List<String> segments = ConfigUtil.splitPath(path);
+        for(int depth = 1; depth < segments.size(); depth++) {
+            if(find(merged.root(), segments.subList(0, depth)) == null) {
+                return ConfigUtil.joinPath(segments.subList(0, depth));
+            }
+        }
+        return path;
+    }
+
+    private static ConfigValue find(ConfigObject object, List<String> segments) {
+        ConfigValue value = object;
+        for(String segment : segments) {
+            if(!(value instanceof ConfigObject)) {
+                return null;
+            }
+            value = ((ConfigObject) value).get(segment);
+        }
+        return value;
+    }
+
+    private void put(Resolution resolution, long generation) {
+        synchronized (resolutions) {
+            if(generation != this.generation) {
+                // invalidated while the configuration was being resolved
+                return;
+            }
+            resolutions.put(resolution.facts, resolution);
+            Iterator<Resolution> iterator = resolutions.values().iterator();
+            while(resolutions.size() > maxSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A resolved configuration with the keys of the merged configuration it was resolved from and the substitutions
+     * each key references.
+     */
+    private static final class Resolution {
+
+        private final Map<String, String> facts;
+        private final List<String> paths;
+        private final Config config;
+        // the values of the merged configuration by key, objects that cannot be traversed unresolved are values too
+        private final Map<String, ConfigValue> leaves = new HashMap<>();
+        // the paths referenced by each key with substitutions, null if a reference cannot be parsed
+        private Map<String, List<List<String>>> dependencies = new HashMap<>();
+        // true if a key references itself, e.g. to merge with the layers below
+        private boolean selfReferential;
+
+        private Resolution(Map<String, String> facts, List<String> paths, Config merged, Config config) {
+            this.facts = facts;
+            this.paths = paths;
+            this.config = config;
+            collect(merged.root(), new ArrayList<>());
+        }
+
+        private void collect(ConfigObject object, List<String> prefix) {
+            Set<Map.Entry<String, ConfigValue>> entries;
+            try {
+                entries = object.entrySet();
+            } catch (ConfigException.NotResolved e) {
+                leaf(object, prefix);
+                return;
+            }
+            if(entries.isEmpty() && !prefix.isEmpty()) {
+                leaf(object, prefix);
+                return;
+            }
+            for(Map.Entry<String, ConfigValue> entry : entries) {
+                prefix.add(entry.getKey());
+                if(entry.getValue() instanceof ConfigObject) {
+                    collect((ConfigObject) entry.getValue(), prefix);
+                } else {
+                    leaf(entry.getValue(), prefix);
+                }
+                prefix.remove(prefix.size() - 1);
+            }
+        }
+
+        private void leaf(ConfigValue value, List<String> prefix) {
+            String path = ConfigUtil.joinPath(prefix);
+            leaves.put(path, value);
+            if(dependencies == null || value.atKey("value").isResolved()) {
+                return;
+            }
+            List<List<String>> references = new ArrayList<>();
+            Matcher matcher = SUBSTITUTION.matcher(value.render(RENDER_OPTIONS));
+            while(matcher.find()) {
+                try {
+                    references.add(ConfigUtil.splitPath(matcher.group(1).trim()));
+                } catch (ConfigException.BadPath e) {
+                    dependencies = null;
+                    return;
+                }
+            }
+            if(references.isEmpty()) {
+                // unresolved but without a substitution in its rendering, e.g. an unresolvable merge of objects
+                dependencies = null;
+                return;
+            }
+            dependencies.put(path, references);
+            selfReferential |= overlaps(references, Collections.singletonList(new ArrayList<>(prefix)));
+        }
+    }
+}
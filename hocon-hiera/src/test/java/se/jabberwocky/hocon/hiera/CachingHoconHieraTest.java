@@ -0,0 +1,367 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CachingHoconHieraTest {
+
+    private CachingHoconHiera hiera;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        hiera = new CachingHoconHiera(fileSystem(), CachingHoconHiera.DEFAULT_MAX_SIZE, 0, TimeUnit.MILLISECONDS,
+                Runnable::run);
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void config_cached() throws Exception {
+        Config config = hiera.config(facts);
+        assertEquals("server-1", config.getString("some-param"));
+
+        // unreferenced facts do not fragment the cache
+        Map<String, String> other = new HashMap<>(facts);
+        other.put("requestId", "42");
+
+        assertSame(config, hiera.config(facts));
+        assertSame(config, hiera.config(other));
+        assertEquals(2, hiera.hits());
+        assertEquals(1, hiera.misses());
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        HieraStats stats = new HieraStats();
+        hiera = new CachingHoconHiera(fileSystem().withMetrics(stats));
+
+        // each lookup is reported once, the miss by the decorated hiera and the hits by the cache
+        hiera.config(facts);
+        hiera.config(facts);
+        hiera.config(facts, "http");
+        hiera.config(facts, "http");
+        hiera.configAsync(facts).get();
+        assertEquals(5, stats.getLookups());
+        assertEquals(2, stats.getMerges());
+    }
+
+    @Test
+    public void configAsync_cached() throws Exception {
+        Config config = hiera.configAsync(facts).get();
+        assertEquals(hiera.config(facts), config);
+        assertEquals(1, hiera.misses());
+
+        // a hit completes without running a task
+        CompletableFuture<Config> future = hiera.configAsync(facts, task -> fail("Expected a cache hit"));
+        assertTrue(future.isDone());
+        assertSame(config, future.get());
+    }
+
+    @Test
+    public void configAsync_changed() throws Exception {
+        // a hiera not coalescing lookups itself
+        HoconHieraFileSystem fileSystem = fileSystem();
+        hiera = new CachingHoconHiera(new HoconHiera() {
+            @Override
+            public Config hiera() {
+                return fileSystem.hiera();
+            }
+
+            @Override
+            public Config config(String path) {
+                return fileSystem.config(path);
+            }
+        });
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        CompletableFuture<Config> first = hiera.configAsync(facts, tasks::add);
+        tasks.poll().run();
+
+        // a lookup started before a change of its layers is not joined
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+        CompletableFuture<Config> second = hiera.configAsync(facts, tasks::add);
+        CompletableFuture<Config> third = hiera.configAsync(facts, tasks::add);
+        while(!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+
+        assertNotSame(first.get(), second.get());
+        assertSame(second.get(), third.get());
+    }
+
+    @Test
+    public void config_prefix_cached() throws Exception {
+        Config http = hiera.config(facts, "http");
+        assertEquals("commerce-core", http.getString("http.baseName"));
+        assertFalse(http.hasPath("some-param"));
+
+        Config config = hiera.config(facts);
+        assertSame(http, hiera.config(facts, "http"));
+        assertNotSame(http, hiera.config(facts, "mongo"));
+        assertEquals(3, hiera.size());
+        assertEquals(1, hiera.hits());
+
+        // subtrees are recomputed with the full configurations
+        hiera.changed(Collections.singleton("svc/dms-commerce-core.conf"));
+        assertEquals(3, hiera.refreshes());
+        assertNotSame(http, hiera.config(facts, "http"));
+        assertNotSame(config, hiera.config(facts));
+        assertEquals(3, hiera.misses());
+    }
+
+    @Test
+    public void config_maxSize() throws Exception {
+        hiera = new CachingHoconHiera(fileSystem(), 1, 0, TimeUnit.MILLISECONDS);
+        hiera.config(facts);
+        facts.put("hostname", "dtcmeawsp02");
+        hiera.config(facts);
+
+        assertEquals(1, hiera.size());
+        assertEquals(1, hiera.evictions());
+    }
+
+    @Test
+    public void config_maxSize_dependents() throws Exception {
+        hiera = new CachingHoconHiera(fileSystem(), 2, 0, TimeUnit.MILLISECONDS);
+        Map<String, String> other = new HashMap<>(facts);
+        other.put("hostname", "dtcmeawsp02");
+        hiera.config(facts);
+        hiera.config(other);
+
+        // only hits reorder the entries
+        hiera.config(facts);
+        assertEquals(1, hiera.dependents("node/dtcmeawsp02.conf").size());
+        Map<String, String> third = new HashMap<>(facts);
+        third.put("hostname", "dtcmeawsp03");
+        hiera.config(third);
+
+        assertEquals(1, hiera.dependents("node/dtcmeawsp01.conf").size());
+        assertTrue(hiera.dependents("node/dtcmeawsp02.conf").isEmpty());
+    }
+
+    @Test
+    public void config_expired() throws Exception {
+        hiera = new CachingHoconHiera(fileSystem(), 10, 1, TimeUnit.NANOSECONDS);
+        Config config = hiera.config(facts);
+        Thread.sleep(1);
+
+        assertNotSame(config, hiera.config(facts));
+        assertEquals(2, hiera.misses());
+    }
+
+    @Test
+    public void changed() throws Exception {
+        Config config = hiera.config(facts);
+
+        hiera.changed(Collections.singleton("node/dtcmeawsp02.conf"));
+        assertSame(config, hiera.config(facts));
+
+        // absent layers are dependencies too, affected entries are recomputed
+        hiera.changed(Collections.singleton("svc-node/dms-commerce-core-dtcmeawsp01.conf"));
+        assertEquals(1, hiera.size());
+        assertEquals(1, hiera.refreshes());
+        assertNotSame(config, hiera.config(facts));
+        assertEquals(1, hiera.misses());
+        config = hiera.config(facts);
+
+        hiera.changed(Collections.singleton(HoconHiera.HIERA_CONFIG_FILE));
+        assertNotSame(config, hiera.config(facts));
+    }
+
+    @Test
+    public void changed_dependents() throws Exception {
+        Map<String, String> other = new HashMap<>(facts);
+        other.put("hostname", "dtcmeawsp02");
+        hiera.config(facts);
+        Config config = hiera.config(other);
+
+        assertEquals(2, hiera.dependents("env/prd.conf").size());
+        assertEquals(1, hiera.dependents("node/dtcmeawsp01.conf").size());
+        assertEquals("dtcmeawsp01", hiera.dependents("node/dtcmeawsp01.conf").get(0).get("hostname"));
+
+        // only the node using the changed layer is recomputed
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+        assertEquals(1, hiera.refreshes());
+        assertEquals(2, hiera.size());
+        assertSame(config, hiera.config(other));
+        assertEquals(2, hiera.misses());
+    }
+
+    @Test
+    public void changed_refreshExecutor() throws Exception {
+        List<Runnable> tasks = new ArrayList<>();
+        hiera = new CachingHoconHiera(fileSystem(), 16, 0, TimeUnit.MILLISECONDS, tasks::add);
+        hiera.config(facts);
+
+        // dropped on the reporting thread, recomputed on the executor
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+        assertEquals(0, hiera.size());
+        assertEquals(1, tasks.size());
+
+        // a refresh started before another change of its layers is not cached
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+        tasks.remove(0).run();
+        assertEquals(0, hiera.size());
+        assertEquals(0, hiera.refreshes());
+
+        hiera.config(facts);
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+        tasks.forEach(Runnable::run);
+        assertEquals(1, hiera.size());
+        assertEquals(1, hiera.refreshes());
+    }
+
+    @Test
+    public void hierarchy_changed() throws Exception {
+        Path root = HoconHieraFileSystemTest.copyRoot();
+        hiera = new CachingHoconHiera(new HoconHieraFileSystem(root));
+        Config config = hiera.config(facts);
+        assertSame(hiera.hierarchy(), hiera.hierarchy());
+
+        // picked up without a listener
+        Path file = root.resolve(HoconHiera.HIERA_CONFIG_FILE);
+        Files.write(file, "hierarchy: [\"node/\"${hostname}\".conf\"]\nsome-param: changed".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+
+        assertEquals(Collections.singletonList("node/dtcmeawsp01.conf"), hiera.hierarchy().paths(facts));
+        assertNotSame(config, hiera.config(facts));
+        assertEquals(1, hiera.size());
+    }
+
+    @Test
+    public void hierarchy_notCachedByDelegate() throws Exception {
+        HoconHieraFileSystem fileSystem = fileSystem();
+        hiera = new CachingHoconHiera(new HoconHiera() {
+            @Override
+            public Config hiera() {
+                // parsed again on each call
+                return ConfigFactory.parseString(fileSystem.hiera().root().render());
+            }
+
+            @Override
+            public Config config(String path) {
+                return path.equals(HoconHiera.HIERA_CONFIG_FILE) ? hiera() : fileSystem.config(path);
+            }
+        });
+
+        Config config = hiera.config(facts);
+        assertSame(config, hiera.config(facts));
+        assertEquals(1, hiera.hits());
+        assertEquals(1, hiera.misses());
+    }
+
+    @Test
+    public void config_hitWithoutFingerprint() throws Exception {
+        AtomicInteger fingerprints = new AtomicInteger();
+        hiera = new CachingHoconHiera(new HoconHieraFileSystem(getClass().getResource("/root").getFile()) {
+            @Override
+            public String fingerprint(String path) {
+                fingerprints.incrementAndGet();
+                return super.fingerprint(path);
+            }
+        });
+
+        Config config = hiera.config(facts);
+        int misses = fingerprints.get();
+        assertSame(config, hiera.config(facts));
+        assertSame(config, hiera.config(facts));
+        assertEquals(misses, fingerprints.get());
+        assertEquals(2, hiera.hits());
+    }
+
+    @Test
+    public void hierarchy_changedConcurrently() throws Exception {
+        HoconHieraFileSystem fileSystem = fileSystem();
+        Config stale = ConfigFactory.parseString("hierarchy: [\"env/\"${env}\".conf\"]");
+        Config current = ConfigFactory.parseString("hierarchy: [\"node/\"${hostname}\".conf\"]");
+        AtomicReference<Config> source = new AtomicReference<>(fileSystem.hiera());
+        AtomicBoolean reload = new AtomicBoolean();
+        hiera = new CachingHoconHiera(new HoconHiera() {
+            @Override
+            public Config hiera() {
+                return source.get();
+            }
+
+            @Override
+            public Hierarchy hierarchy() {
+                Config config = source.get();
+                if(reload.getAndSet(false)) {
+                    // reloaded again while the stale hierarchy is compiled
+                    source.set(current);
+                    hiera.hierarchy();
+                }
+                return Hierarchy.compile(config);
+            }
+
+            @Override
+            public Config config(String path) {
+                return path.equals(HoconHiera.HIERA_CONFIG_FILE) ? source.get() : fileSystem.config(path);
+            }
+        });
+        hiera.config(facts);
+
+        source.set(stale);
+        reload.set(true);
+        List<String> paths = Collections.singletonList("node/dtcmeawsp01.conf");
+        assertEquals(paths, hiera.hierarchy().paths(facts));
+        assertEquals(paths, hiera.hierarchy().paths(facts));
+    }
+
+    @Test
+    public void changed_whileLoading() throws Exception {
+        AtomicReference<String> changed = new AtomicReference<>();
+        hiera = new CachingHoconHiera(new HoconHieraFileSystem(getClass().getResource("/root").getFile()) {
+            @Override
+            public Config config(Map<String, String> facts) {
+                String path = changed.getAndSet(null);
+                if(path != null) {
+                    hiera.changed(Collections.singleton(path));
+                }
+                return super.config(facts);
+            }
+        });
+
+        // a change of an unrelated layer keeps the entry being loaded
+        changed.set("node/dtcmeawsp02.conf");
+        hiera.config(facts);
+        assertEquals(1, hiera.size());
+
+        // a change of a layer of the entry drops it
+        facts.put("hostname", "dtcmeawsp02");
+        changed.set("node/dtcmeawsp02.conf");
+        hiera.config(facts);
+        assertEquals(1, hiera.size());
+    }
+
+    // -- support
+
+    private HoconHieraFileSystem fileSystem() {
+        return new HoconHieraFileSystem(getClass().getResource("/root").getFile());
+    }
+
+}
@@ -0,0 +1,232 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CompositeHoconHieraTest {
+
+    private HoconHieraFileSystem shared;
+    private HoconHieraFileSystem local;
+    private CompositeHoconHiera hiera;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        shared = new HoconHieraFileSystem(HoconHieraFileSystemTest.copyRoot());
+
+        Path root = Files.createTempDirectory("hiera-local-");
+        Files.createDirectories(root.resolve("node"));
+        Files.createDirectories(root.resolve("local"));
+        Files.write(root.resolve(HoconHiera.HIERA_CONFIG_FILE),
+                "hierarchy: [\"node/\"${hostname}\".conf\", \"local/\"${hostname}\".conf\"]".getBytes());
+        Files.write(root.resolve("node/dtcmeawsp01.conf"), "host: local-host".getBytes());
+        Files.write(root.resolve("local/dtcmeawsp01.conf"), "debug: true".getBytes());
+        local = new HoconHieraFileSystem(root);
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @After
+    public void teardown() {
+        if(hiera != null) {
+            hiera.close();
+        }
+    }
+
+    @Test
+    public void hierarchy() throws Exception {
+        hiera = new CompositeHoconHiera(Arrays.asList(shared, local), 1, TimeUnit.SECONDS, 2);
+
+        List<String> paths = hiera.hierarchy().paths(facts);
+        assertEquals(12, paths.size());
+        // the local layer follows the node layer it follows in the local hierarchy
+        assertEquals("node/dtcmeawsp01.conf", paths.get(4));
+        assertEquals("local/dtcmeawsp01.conf", paths.get(5));
+        assertEquals("svc-node/dms-commerce-core-dtcmeawsp01.conf", paths.get(11));
+        assertSame(hiera.hierarchy(), hiera.hierarchy());
+    }
+
+    @Test
+    public void config() throws Exception {
+        hiera = new CompositeHoconHiera(Arrays.asList(shared, local), 1, TimeUnit.SECONDS, 2);
+
+        Config config = hiera.config(facts);
+        assertEquals("local-host", config.getString("host"));
+        assertEquals("server-1", config.getString("some-param"));
+        assertTrue(config.getBoolean("debug"));
+        assertEquals(0, hiera.failures());
+    }
+
+    @Test
+    public void fingerprint() throws Exception {
+        hiera = new CompositeHoconHiera(Arrays.asList(shared, local), 1, TimeUnit.SECONDS, 2);
+
+        assertEquals(HoconHiera.MISSING_FINGERPRINT, hiera.fingerprint("missing.conf"));
+        assertNotEquals(shared.fingerprint("node/dtcmeawsp01.conf"), hiera.fingerprint("node/dtcmeawsp01.conf"));
+        assertEquals(hiera.fingerprint("node/dtcmeawsp01.conf"), hiera.fingerprint("node/dtcmeawsp01.conf"));
+    }
+
+    @Test
+    public void config_slowRoot() throws Exception {
+        Flaky slow = new Flaky(shared);
+        hiera = new CompositeHoconHiera(Arrays.asList(slow, local), 100, TimeUnit.MILLISECONDS, 2);
+        assertEquals("server-1", hiera.config(facts).getString("some-param"));
+
+        slow.delay = 2000;
+        long start = System.nanoTime();
+        Config config = hiera.config(facts);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        // the slow root contributes its last known layers
+        assertEquals("local-host", config.getString("host"));
+        assertEquals("server-1", config.getString("some-param"));
+        assertTrue(hiera.failures(0) > 0);
+        assertEquals(0, hiera.failures(1));
+    }
+
+    @Test
+    public void config_slowRoot_unknownKey() throws Exception {
+        Flaky slow = new Flaky(shared);
+        hiera = new CompositeHoconHiera(Arrays.asList(slow, local), 500, TimeUnit.MILLISECONDS, 16);
+        hiera.config(facts);
+
+        slow.delay = 2000;
+        hiera.config(facts);
+        slow.delay = 0;
+
+        // a key never probed is waited for while the root is overdue
+        assertEquals(HoconHiera.MISSING_FINGERPRINT, hiera.fingerprint("missing.conf"));
+    }
+
+    @Test
+    public void config_maxLastKnown() throws Exception {
+        Flaky failing = new Flaky(shared);
+        hiera = new CompositeHoconHiera(Arrays.asList(failing, local), 1, TimeUnit.SECONDS, 2, 1);
+        hiera.config("node/dtcmeawsp01.conf");
+        hiera.config("env/prd.conf");
+
+        // only the most recently used result is kept
+        failing.failing = true;
+        assertEquals(shared.config("env/prd.conf"), hiera.config("env/prd.conf"));
+        try {
+            hiera.config("node/dtcmeawsp01.conf");
+            fail("The last known result must have been evicted");
+        } catch (RuntimeException e) {
+            assertEquals("Could not read the root", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void config_failingRoot() throws Exception {
+        Flaky failing = new Flaky(shared);
+        hiera = new CompositeHoconHiera(Arrays.asList(failing, local), 1, TimeUnit.SECONDS, 2);
+        hiera.config(facts);
+
+        // the failing root contributes its last known layers
+        failing.failing = true;
+        Config config = hiera.config(facts);
+        assertEquals("local-host", config.getString("host"));
+        assertEquals("server-1", config.getString("some-param"));
+        assertEquals(12, hiera.hierarchy().paths(facts).size());
+        assertTrue(hiera.failures(0) > 0);
+    }
+
+    @Test
+    public void config_failingRoot_neverKnown() throws Exception {
+        Flaky failing = new Flaky(shared);
+        failing.failing = true;
+        hiera = new CompositeHoconHiera(Arrays.asList(failing, local), 1, TimeUnit.SECONDS, 2);
+
+        // a root never known is not left out
+        try {
+            hiera.hierarchy();
+            fail("A root never known must fail the lookup");
+        } catch (RuntimeException e) {
+            assertEquals("Could not read the root", e.getCause().getMessage());
+        }
+        try {
+            hiera.config("local/dtcmeawsp01.conf");
+            fail("A root never known must fail the lookup");
+        } catch (RuntimeException e) {
+            assertEquals("Could not read the root", e.getCause().getMessage());
+        }
+        assertTrue(hiera.failures(0) > 0);
+    }
+
+    @Test
+    public void hiera() throws Exception {
+        hiera = new CompositeHoconHiera(Arrays.asList(shared, local), 1, TimeUnit.SECONDS, 2);
+
+        assertSame(hiera.hiera(), hiera.hiera());
+        assertEquals(12, hiera.hiera().getList(HoconHiera.HIERARCHY_CONFIG_KEY).size());
+    }
+
+    @Test
+    public void size() throws Exception {
+        hiera = new CompositeHoconHiera(Arrays.asList(shared, local), 1, TimeUnit.SECONDS, 2);
+
+        assertEquals(shared.size("node/dtcmeawsp01.conf") + local.size("node/dtcmeawsp01.conf"),
+                hiera.size("node/dtcmeawsp01.conf"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_noRoots() throws Exception {
+        new CompositeHoconHiera(Arrays.asList());
+    }
+
+    // -- support
+
+    /**
+     * A root delaying or failing its probes on demand.
+     */
+    private static final class Flaky implements HoconHiera {
+
+        private final HoconHiera hiera;
+        private volatile long delay;
+        private volatile boolean failing;
+
+        private Flaky(HoconHiera hiera) {
+            this.hiera = hiera;
+        }
+
+        @Override
+        public Config hiera() {
+            probe();
+            return hiera.hiera();
+        }
+
+        @Override
+        public Config config(String path) {
+            probe();
+            return hiera.config(path);
+        }
+
+        private void probe() {
+            if(failing) {
+                throw new RuntimeException("Could not read the root");
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConfigCacheTest {
+
+    private final Config a = ConfigFactory.parseString("a: 1");
+    private final Config b = ConfigFactory.parseString("b: 2");
+
+    @Test
+    public void get_hit() throws Exception {
+        ConfigCache cache = new ConfigCache(100);
+
+        assertSame(a, cache.get("a", 1L, 10, () -> a));
+        assertSame(a, cache.get("a", 1L, 10, () -> b));
+
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void get_stampChanged() throws Exception {
+        ConfigCache cache = new ConfigCache(100);
+
+        cache.get("a", 1L, 10, () -> a);
+        assertSame(b, cache.get("a", 2L, 10, () -> b));
+
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.size());
+        assertEquals(10, cache.weight());
+    }
+
+    @Test
+    public void get_evictsLeastRecentlyUsed() throws Exception {
+        ConfigCache cache = new ConfigCache(20);
+
+        cache.get("a", 1L, 10, () -> a);
+        cache.get("b", 1L, 10, () -> b);
+        // touch a so that b becomes the eldest entry
+        cache.get("a", 1L, 10, () -> a);
+        cache.get("c", 1L, 10, () -> a);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        assertSame(a, cache.get("a", 1L, 10, () -> b));
+        assertSame(a, cache.get("b", 1L, 10, () -> a));
+    }
+
+    @Test
+    public void get_disabled() throws Exception {
+        ConfigCache cache = new ConfigCache(0);
+
+        cache.get("a", 1L, 10, () -> a);
+        cache.get("a", 1L, 10, () -> a);
+
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        ConfigCache cache = new ConfigCache(100);
+
+        cache.get("a", 1L, 10, () -> a);
+        cache.get("b", 1L, 10, () -> b);
+
+        assertTrue(cache.invalidate("a"));
+        assertFalse(cache.invalidate("a"));
+        assertEquals(1, cache.invalidateIf(key -> key.equals("b")));
+        assertEquals(0, cache.weight());
+    }
+
+}
@@ -0,0 +1,85 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConfigInternerTest {
+
+    private final ConfigInterner interner = new ConfigInterner();
+
+    @Test
+    public void intern() throws Exception {
+        Config first = interner.intern(parse("shared { a: 1, b: [x, y] }, host: web-1"));
+        Config second = interner.intern(parse("shared { b: [x, y], a: 1 }, host: web-2"));
+
+        assertEquals(parse("shared { a: 1, b: [x, y] }, host: web-1").root(), first.root());
+        assertEquals(parse("shared { a: 1, b: [x, y] }, host: web-2").root(), second.root());
+        assertSame(first.getObject("shared"), second.getObject("shared"));
+        assertSame(first.root().get("shared"), second.root().get("shared"));
+    }
+
+    @Test
+    public void intern_scalars() throws Exception {
+        Config first = interner.intern(parse("a: text, n: 1.0"));
+        Config second = interner.intern(parse("b: text, n: 1"));
+
+        assertSame(first.getValue("a"), second.getValue("b"));
+        // equal numbers with a different original text are not shared
+        assertNotSame(first.getValue("n"), second.getValue("n"));
+        assertEquals("1.0", first.getString("n"));
+        assertEquals("1", second.getString("n"));
+    }
+
+    @Test
+    public void intern_unchanged() throws Exception {
+        Config config = parse("a { b: 1 }");
+        assertSame(config.root(), interner.intern(config).root());
+        assertSame(config.root(), interner.intern(config).root());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void intern_unresolved() throws Exception {
+        interner.intern(ConfigFactory.parseString("a: ${b}, b: 1"));
+    }
+
+    @Test
+    public void report() throws Exception {
+        HoconHieraFileSystem hiera = new HoconHieraFileSystem(HoconHieraFileSystemTest.copyRoot());
+        Map<String, String> facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+
+        for(String hostname : new String[]{"dtcmeawsp01", "dtcmeawsp02", "dtcmeawsp03"}) {
+            facts.put("hostname", hostname);
+            Config config = hiera.config(facts).resolve();
+            assertEquals(config.root(), interner.intern(config).root());
+        }
+
+        ConfigInterner.Report report = interner.report();
+        assertEquals(3, report.configs());
+        assertTrue(report.sharedValues() > 0);
+        assertTrue(report.sharedKeys() > 0);
+        assertTrue(report.uniqueValues() < report.values());
+        assertTrue(report.retainedBytes() < report.bytes());
+        assertEquals(report.bytes() - report.retainedBytes(), report.savedBytes());
+        assertNotNull(interner.toString());
+
+        interner.clear();
+        assertEquals(0, interner.report().configs());
+        assertEquals(0, interner.report().uniqueValues());
+    }
+
+    // -- support
+
+    private static Config parse(String config) {
+        return ConfigFactory.parseString(config).resolve();
+    }
+}
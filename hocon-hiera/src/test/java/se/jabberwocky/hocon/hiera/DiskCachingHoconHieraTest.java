@@ -0,0 +1,124 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigResolveOptions;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DiskCachingHoconHieraTest {
+
+    private Path root;
+    private Path directory;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        directory = Files.createTempDirectory("hiera-cache");
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void config_restart() throws Exception {
+        DiskCachingHoconHiera hiera = new DiskCachingHoconHiera(new HoconHieraFileSystem(root), directory);
+        Config config = hiera.config(facts);
+        assertEquals("server-1", config.getString("some-param"));
+        assertEquals(1, hiera.misses());
+        assertEquals(1, count());
+
+        // a new instance, e.g. in another process, reuses the entry
+        DiskCachingHoconHiera restarted = new DiskCachingHoconHiera(new HoconHieraFileSystem(root), directory);
+        assertEquals(config, restarted.config(facts));
+        assertEquals(1, restarted.hits());
+        assertEquals(0, restarted.misses());
+    }
+
+    @Test
+    public void config_modified() throws Exception {
+        DiskCachingHoconHiera hiera = new DiskCachingHoconHiera(new HoconHieraFileSystem(root), directory);
+        hiera.config(facts);
+
+        Path file = root.resolve("node/dtcmeawsp01.conf");
+        Files.write(file, "some-param: changed".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+
+        assertEquals("changed", hiera.config(facts).getString("some-param"));
+        assertEquals(2, hiera.misses());
+        assertEquals(2, count());
+    }
+
+    @Test
+    public void config_corrupt() throws Exception {
+        DiskCachingHoconHiera hiera = new DiskCachingHoconHiera(new HoconHieraFileSystem(root), directory);
+        hiera.config(facts);
+        try (Stream<Path> files = Files.list(directory)) {
+            Files.write(files.findFirst().get(), "corrupt".getBytes());
+        }
+
+        assertEquals("server-1", hiera.config(facts).getString("some-param"));
+        assertEquals(2, hiera.misses());
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void config_evicted() throws Exception {
+        DiskCachingHoconHiera hiera = new DiskCachingHoconHiera(new HoconHieraFileSystem(root), directory, 1, false);
+        hiera.config(facts);
+        facts.put("hostname", "dtcmeawsp02");
+        hiera.config(facts);
+
+        assertEquals(0, count());
+        assertEquals(2, hiera.evictions());
+    }
+
+    @Test
+    public void config_unresolved() throws Exception {
+        Files.write(root.resolve("env/prd.conf"), "opt: ${?foo}\nhome: ${?HOME}".getBytes());
+        HoconHieraFileSystem fileSystem = new HoconHieraFileSystem(root);
+        DiskCachingHoconHiera hiera = new DiskCachingHoconHiera(fileSystem, directory);
+        assertFalse(hiera.config(facts).isResolved());
+
+        // the cached entry is the unresolved merge, nothing of this process is baked in
+        DiskCachingHoconHiera restarted = new DiskCachingHoconHiera(new HoconHieraFileSystem(root), directory);
+        Config config = restarted.config(facts);
+        assertEquals(1, restarted.hits());
+        assertFalse(config.isResolved());
+        assertEquals(fileSystem.config(facts).resolve().root(), config.resolve().root());
+        assertEquals("bar", config.resolveWith(ConfigFactory.parseString("foo: bar")).getString("opt"));
+        assertFalse(config.resolve(ConfigResolveOptions.noSystem()).hasPath("home"));
+    }
+
+    @Test
+    public void invalidateAll() throws Exception {
+        DiskCachingHoconHiera hiera = new DiskCachingHoconHiera(new HoconHieraFileSystem(root), directory);
+        hiera.config(facts);
+        hiera.invalidateAll();
+
+        assertEquals(0, count());
+    }
+
+    // -- support
+
+    private long count() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlatConfigTest {
+
+    private final Config config = ConfigFactory.parseString("a { b { c: 1, d: text } }, "
+            + "\"x.y\": quoted, n: 10000000000, f: 1.5, s: \"42\", t: true, nil: null, "
+            + "d: 10s, m: 64k, l: [1, 2], o: { p: ${a.b.c} }").resolve();
+
+    @Test
+    public void of() throws Exception {
+        FlatConfig flat = FlatConfig.of(config);
+        assertSame(config, flat.config());
+        assertEquals(15, flat.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void of_unresolved() throws Exception {
+        FlatConfig.of(ConfigFactory.parseString("a: ${b}, b: 1"));
+    }
+
+    @Test
+    public void getters() throws Exception {
+        FlatConfig flat = FlatConfig.of(config);
+
+        assertEquals(1, flat.getInt("a.b.c"));
+        assertEquals(1L, flat.getLong("a.b.c"));
+        assertEquals("text", flat.getString("a.b.d"));
+        assertEquals("quoted", flat.getString("\"x.y\""));
+        assertEquals(10000000000L, flat.getLong("n"));
+        assertEquals(1.5, flat.getDouble("f"), 0);
+        assertTrue(flat.getBoolean("t"));
+        assertEquals(1, flat.getInt("o.p"));
+        assertEquals(Duration.ofSeconds(10), flat.getDuration("d"));
+        assertEquals(10_000L, flat.getDuration("d", TimeUnit.MILLISECONDS));
+        assertEquals(64 * 1024L, flat.getBytes("m").longValue());
+        assertEquals(Arrays.asList(1, 2), flat.getIntList("l"));
+        assertEquals(2, flat.getList("l").size());
+        assertEquals(config.getObject("a"), flat.getObject("a"));
+
+        FlatConfig b = flat.getConfig("a.b");
+        assertSame(b, flat.getConfig("a.b"));
+        assertEquals("text", b.getString("d"));
+    }
+
+    @Test
+    public void conversions() throws Exception {
+        FlatConfig flat = FlatConfig.of(config);
+
+        // converted and reported by the configuration
+        assertEquals(42, flat.getInt("s"));
+        assertEquals("1", flat.getString("a.b.c"));
+        assertEquals("text", flat.getString("a.\"b\".d"));
+        try {
+            flat.getInt("n");
+            fail("Expected the value to be out of range");
+        } catch (ConfigException.WrongType e) {
+            // expected
+        }
+        try {
+            flat.getBoolean("a.b.d");
+            fail("Expected the value to be of the wrong type");
+        } catch (ConfigException.WrongType e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void missing() throws Exception {
+        FlatConfig flat = FlatConfig.of(config);
+
+        assertFalse(flat.hasPath("missing"));
+        assertFalse(flat.hasPath("nil"));
+        assertTrue(flat.hasPathOrNull("nil"));
+        assertTrue(flat.getIsNull("nil"));
+        try {
+            flat.getString("missing");
+            fail("Expected the path to be missing");
+        } catch (ConfigException.Missing e) {
+            // expected
+        }
+        try {
+            flat.getString("nil");
+            fail("Expected the value to be null");
+        } catch (ConfigException.Null e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void flat() throws Exception {
+        HoconHieraFileSystem hiera = new HoconHieraFileSystem(HoconHieraFileSystemTest.copyRoot());
+
+        Map<String, String> facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+
+        FlatConfig flat = hiera.flat(facts);
+        assertEquals("web-1.acme.com", flat.getString("host"));
+        assertEquals(hiera.config(facts).resolve().root(), flat.config().root());
+    }
+
+    @Test
+    public void config() throws Exception {
+        FlatConfig flat = FlatConfig.of(config);
+
+        // the flattened configuration is passed back to Typesafe Config as a plain config
+        Config merged = ConfigFactory.parseString("z: 2, n: 1").withFallback(flat.config());
+        assertEquals(1, merged.getInt("n"));
+        assertEquals("text", merged.getString("a.b.d"));
+        Config resolved = ConfigFactory.parseString("r: ${a.b.c}").resolveWith(flat.config());
+        assertEquals(1, resolved.getInt("r"));
+        assertEquals(flat.config(), config);
+        assertEquals(config, flat.config());
+    }
+}
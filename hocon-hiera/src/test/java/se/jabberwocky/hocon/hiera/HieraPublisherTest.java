@@ -0,0 +1,237 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HieraPublisherTest {
+
+    private static final String NODE = "node/dtcmeawsp01.conf";
+
+    private Path root;
+    private HieraStats stats;
+    private ExecutorService executor;
+    private HieraPublisher publisher;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        stats = new HieraStats();
+        executor = Executors.newFixedThreadPool(2);
+        publisher = new HieraPublisher(new HoconHieraFileSystem(root).withMetrics(stats), executor, 10);
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @After
+    public void teardown() {
+        publisher.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void subscribe() throws Exception {
+        Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        publisher.subscribe(facts, subscriber);
+        assertEquals("server-1", subscriber.next().getString("some-param"));
+
+        modify(NODE, "some-param: changed");
+        assertEquals("changed", subscriber.next().getString("some-param"));
+    }
+
+    @Test
+    public void subscribe_shared() throws Exception {
+        Subscriber first = new Subscriber(Long.MAX_VALUE);
+        Subscriber second = new Subscriber(Long.MAX_VALUE);
+        publisher.subscribe(facts, first);
+        Config config = first.next();
+        publisher.subscribe(new HashMap<>(facts), second);
+
+        assertSame(config, second.next());
+        assertEquals(1, publisher.topics());
+        assertEquals(1, stats.getLookups());
+    }
+
+    @Test
+    public void subscribe_shared_unreferencedFacts() throws Exception {
+        Subscriber first = new Subscriber(Long.MAX_VALUE);
+        Subscriber second = new Subscriber(Long.MAX_VALUE);
+        Map<String, String> other = new HashMap<>(facts);
+        other.put("clientId", "other");
+        publisher.subscribe(facts, first);
+        Config config = first.next();
+        publisher.subscribe(other, second);
+
+        assertSame(config, second.next());
+        assertEquals(1, publisher.topics());
+        assertEquals(1, stats.getLookups());
+    }
+
+    @Test
+    public void changed_whileResolving() throws Exception {
+        publisher.close();
+        publisher = new HieraPublisher(new HoconHieraFileSystem(root) {
+            private boolean changed;
+
+            @Override
+            public Config config(Map<String, String> facts) {
+                Config config = super.config(facts);
+                if(!changed) {
+                    // a change of a layer after the first lookup read it
+                    changed = true;
+                    try {
+                        modify(NODE, "some-param: changed");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return config;
+            }
+        }.withMetrics(stats), executor, 10);
+
+        Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        publisher.subscribe(facts, subscriber);
+        assertEquals("server-1", subscriber.next().getString("some-param"));
+        assertEquals("changed", subscriber.next().getString("some-param"));
+    }
+
+    @Test
+    public void changed_unrelated() throws Exception {
+        Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        publisher.subscribe(facts, subscriber);
+        subscriber.next();
+
+        modify("node/dtcmeawsp02.conf", "some-param: changed");
+        assertNull(subscriber.configs.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, stats.getLookups());
+    }
+
+    @Test
+    public void changed_sameContent() throws Exception {
+        Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        publisher.subscribe(facts, subscriber);
+        subscriber.next();
+
+        // a comment changes the fingerprint but not the configuration
+        modify(NODE, "# comment\nhost: \"web-1.acme.com\"\nsome-param: \"server-1\"");
+        assertNull(subscriber.configs.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, stats.getLookups());
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        Subscriber subscriber = new Subscriber(1);
+        publisher.subscribe(facts, subscriber);
+        assertEquals("server-1", subscriber.next().getString("some-param"));
+
+        modify(NODE, "some-param: first");
+        waitForLookups(2);
+        modify(NODE, "some-param: second");
+        waitForLookups(3);
+        assertNull(subscriber.configs.poll(50, TimeUnit.MILLISECONDS));
+
+        // only the latest configuration is delivered
+        subscriber.subscription.request(1);
+        assertEquals("second", subscriber.next().getString("some-param"));
+        assertNull(subscriber.configs.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        HieraSubscription subscription = publisher.subscribe(facts, subscriber);
+        subscriber.next();
+        subscription.cancel();
+
+        assertEquals(0, publisher.topics());
+        modify(NODE, "some-param: changed");
+        assertNull(subscriber.configs.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void error() throws Exception {
+        Subscriber subscriber = new Subscriber(Long.MAX_VALUE);
+        publisher.subscribe(facts, subscriber);
+        subscriber.next();
+
+        modify(NODE, "some-param: ${missing}");
+        assertNotNull(subscriber.errors.poll(5, TimeUnit.SECONDS));
+
+        // the subscription survives errors
+        modify(NODE, "some-param: fixed");
+        assertEquals("fixed", subscriber.next().getString("some-param"));
+    }
+
+    // -- support
+
+    private void modify(String path, String content) throws Exception {
+        Path file = root.resolve(path);
+        Files.write(file, content.getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000 * stats.getLookups()));
+        publisher.changed(Collections.singleton(path));
+    }
+
+    private void waitForLookups(long lookups) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(stats.getLookups() < lookups && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(lookups, stats.getLookups());
+    }
+
+    private static final class Subscriber implements HieraSubscriber {
+
+        private final long initial;
+        private final BlockingQueue<Config> configs = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        private HieraSubscription subscription;
+
+        private Subscriber(long initial) {
+            this.initial = initial;
+        }
+
+        @Override
+        public void onSubscribe(HieraSubscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initial);
+        }
+
+        @Override
+        public void onNext(Config config) {
+            configs.add(config);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+
+        private Config next() throws InterruptedException {
+            Config config = configs.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Expected a configuration", config);
+            return config;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HieraSnapshotTest {
+
+    private Path root;
+    private HoconHieraFileSystem hiera;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        Files.write(root.resolve("env/prd.conf"), ("env: prd\n"
+                + "port: 8080\n"
+                + "timeout: 3000000000\n"
+                + "ratio: 0.75\n"
+                + "enabled: true\n"
+                + "disabled: false\n"
+                + "nothing: null\n"
+                + "hosts: [ a, b, { name: c } ]\n"
+                + "url: \"http://\"${host}\":\"${port}\n").getBytes());
+        hiera = new HoconHieraFileSystem(root);
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void write_read() throws Exception {
+        HieraSnapshot snapshot = HieraSnapshot.of(hiera, facts);
+        HieraSnapshot read = roundtrip(snapshot, false);
+
+        Config config = read.config();
+        assertEquals(snapshot.config(), config);
+        assertEquals(snapshot.layers(), read.layers());
+        assertEquals(12, read.layers().size());
+
+        assertEquals(8080, config.getInt("port"));
+        assertEquals(3000000000L, config.getLong("timeout"));
+        assertEquals(0.75, config.getDouble("ratio"), 0.0);
+        assertTrue(config.getBoolean("enabled"));
+        assertFalse(config.getBoolean("disabled"));
+        assertTrue(config.getIsNull("nothing"));
+        assertEquals(Arrays.asList("a", "b", Collections.singletonMap("name", "c")), config.getList("hosts").unwrapped());
+        assertEquals("http://web-1.acme.com:8080", config.getString("url"));
+    }
+
+    @Test
+    public void write_read_origins() throws Exception {
+        HieraSnapshot snapshot = HieraSnapshot.of(hiera, facts);
+
+        HieraSnapshot withOrigins = roundtrip(snapshot, true);
+        assertTrue(withOrigins.config().getValue("some-param").origin().description().contains("dtcmeawsp01.conf"));
+
+        HieraSnapshot withoutOrigins = roundtrip(snapshot, false);
+        assertEquals("hiera snapshot", withoutOrigins.config().getValue("some-param").origin().description());
+    }
+
+    @Test
+    public void write_read_merged() throws Exception {
+        Files.write(root.resolve("dtc/chvsg.conf"), ("opt: ${?foo}\n"
+                + "hosts: ${?hosts} [ d ]\n").getBytes());
+        HieraSnapshot snapshot = HieraSnapshot.merged(hiera, facts);
+        assertFalse(snapshot.config().isResolved());
+
+        Config config = roundtrip(snapshot, true).config();
+        assertFalse(config.isResolved());
+        assertEquals(snapshot.config().resolve().root(), config.resolve().root());
+        // optional substitutions are kept for the caller to resolve
+        Config fallback = ConfigFactory.parseString("foo: bar");
+        assertEquals("bar", config.withFallback(fallback).resolve().getString("opt"));
+    }
+
+    @Test(expected = ConfigException.UnresolvedSubstitution.class)
+    public void of_noSystem() throws Exception {
+        Files.write(root.resolve("dtc/chvsg.conf"), "home: ${HOME}".getBytes());
+        HieraSnapshot.of(hiera, facts);
+    }
+
+    @Test
+    public void isCurrent() throws Exception {
+        HieraSnapshot snapshot = roundtrip(HieraSnapshot.of(hiera, facts), false);
+        assertTrue(snapshot.isCurrent(hiera));
+
+        Path file = root.resolve("node/dtcmeawsp01.conf");
+        Files.write(file, "some-param: changed".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+        assertFalse(snapshot.isCurrent(hiera));
+    }
+
+    @Test
+    public void isCurrent_layerAdded() throws Exception {
+        HieraSnapshot snapshot = HieraSnapshot.of(hiera, facts);
+
+        Path file = root.resolve("svc-node/dms-commerce-core-dtcmeawsp01.conf");
+        Files.createDirectories(file.getParent());
+        Files.write(file, "some-param: added".getBytes());
+        assertFalse(snapshot.isCurrent(hiera));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void read_corruptLength() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(HieraSnapshot.MAGIC);
+        out.writeInt(HieraSnapshot.VERSION);
+        out.writeBoolean(false);
+        out.writeInt(1);
+        // a layer path claiming to be 2 GB long
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeBytes("hiera.conf");
+
+        HieraSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void read_corruptCount() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HieraSnapshot.of(hiera, facts).write(bytes, false);
+        byte[] snapshot = bytes.toByteArray();
+
+        // claim two billion layers
+        snapshot[9] = 0x7f;
+        HieraSnapshot.read(new ByteArrayInputStream(snapshot));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void read_notSnapshot() throws Exception {
+        HieraSnapshot.read(new ByteArrayInputStream("not a snapshot".getBytes()));
+    }
+
+    // -- support
+
+    private static HieraSnapshot roundtrip(HieraSnapshot snapshot, boolean origins) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        snapshot.write(bytes, origins);
+        return HieraSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+}
@@ -0,0 +1,90 @@
+package se.jabberwocky.hocon.hiera;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HieraStatsTest {
+
+    @Test
+    public void lookup() throws Exception {
+        HieraStats stats = new HieraStats();
+        HoconHieraFileSystem hiera = new HoconHieraFileSystem(HoconHieraFileSystemTest.copyRoot()).withMetrics(stats);
+
+        Map<String, String> facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+        hiera.config(facts);
+        hiera.config(facts);
+
+        // hiera.conf is looked up by both lookups as well
+        assertEquals(2, stats.getLookups());
+        assertEquals(2, stats.getMerges());
+        assertEquals(2 * (5 + 1), stats.getLayerHits());
+        assertEquals(2 * 6, stats.getLayerMisses());
+        assertEquals(6, stats.getParses());
+        assertTrue(stats.getLookupMaxMicros() >= stats.getLookupP50Micros());
+        assertTrue(stats.getParseMaxMicros() >= stats.getParseP95Micros());
+        assertTrue(stats.getMergeMaxMicros() >= stats.getMergeP99Micros());
+    }
+
+    @Test
+    public void percentiles() {
+        HieraStats stats = new HieraStats();
+        for(int i = 0; i < 99; i++) {
+            stats.lookup(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        stats.lookup(TimeUnit.MILLISECONDS.toNanos(10));
+
+        // accurate to within a factor of two
+        assertTrue(stats.getLookupP50Micros() >= 10 && stats.getLookupP50Micros() < 20);
+        assertTrue(stats.getLookupP99Micros() >= 10 && stats.getLookupP99Micros() < 20);
+        assertEquals(10000, stats.getLookupMaxMicros());
+        assertEquals(109.9, stats.getLookupMeanMicros(), 0.01);
+
+        // parses and merges are recorded into the same histograms
+        for(int i = 0; i < 94; i++) {
+            stats.parsed("env/prd.conf", TimeUnit.MICROSECONDS.toNanos(10));
+            stats.merged(5, TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        for(int i = 0; i < 6; i++) {
+            stats.parsed("env/prd.conf", TimeUnit.MILLISECONDS.toNanos(10));
+            stats.merged(5, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertTrue(stats.getParseP50Micros() < 20);
+        assertTrue(stats.getParseP95Micros() > 5000);
+        assertEquals(10000, stats.getParseMaxMicros());
+        assertTrue(stats.getMergeP50Micros() < 20);
+        assertTrue(stats.getMergeP99Micros() > 5000);
+        assertEquals(10000, stats.getMergeMaxMicros());
+
+        stats.reset();
+        assertEquals(0, stats.getLookups());
+        assertEquals(0, stats.getLookupP99Micros());
+        assertEquals(0, stats.getParseP95Micros());
+        assertEquals(0, stats.getMergeMaxMicros());
+    }
+
+    @Test
+    public void register() throws Exception {
+        HieraStats stats = new HieraStats().register("test");
+        try {
+            stats.lookup(1000);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(stats.name(), "Lookups"));
+        } finally {
+            stats.unregister();
+        }
+        assertNull(stats.name());
+    }
+
+}
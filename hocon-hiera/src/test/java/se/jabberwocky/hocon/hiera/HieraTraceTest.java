@@ -0,0 +1,105 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HieraTraceTest {
+
+    private Path root;
+    private HoconHieraFileSystem hiera;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        hiera = new HoconHieraFileSystem(root);
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void trace() throws Exception {
+        HieraTrace trace = new HieraTrace();
+        Config config = hiera.trace(facts, trace);
+        assertEquals(hiera.config(facts), config);
+
+        assertEquals(11, trace.layers().size());
+        HieraTrace.Layer node = trace.layers().get(4);
+        assertEquals("node/dtcmeawsp01.conf", node.path());
+        assertTrue(node.exists());
+        assertEquals(Files.size(root.resolve("node/dtcmeawsp01.conf")), node.bytes());
+        assertTrue(node.loadNanos() > 0);
+
+        HieraTrace.Layer missing = trace.layers().get(10);
+        assertEquals("svc-node/dms-commerce-core-dtcmeawsp01.conf", missing.path());
+        assertFalse(missing.exists());
+        assertEquals(0, missing.bytes());
+
+        assertTrue(trace.totalNanos() > 0);
+        assertNotNull(trace.toString());
+    }
+
+    @Test
+    public void trace_empty() throws Exception {
+        Files.createDirectories(root.resolve("svc-node"));
+        Files.write(root.resolve("svc-node/dms-commerce-core-dtcmeawsp01.conf"), new byte[0]);
+
+        HieraTrace trace = new HieraTrace();
+        hiera.trace(facts, trace);
+
+        // an empty layer exists
+        HieraTrace.Layer empty = trace.layers().get(10);
+        assertTrue(empty.exists());
+        assertEquals(0, empty.bytes());
+        assertFalse(trace.layers().get(9).exists());
+    }
+
+    @Test
+    public void provenance() throws Exception {
+        Files.write(root.resolve("env/prd.conf"), ("env: prd\n"
+                + "db { host: prd-db, port: 5432 }\n"
+                + "url: \"http://\"${host}\n").getBytes());
+        Files.write(root.resolve("dtc/chvsg.conf"), "db.host: chvsg-db".getBytes());
+
+        HieraTrace trace = new HieraTrace();
+        hiera.trace(facts, trace);
+
+        assertEquals("node/dtcmeawsp01.conf", trace.provenance("some-param"));
+        assertEquals("dtc/chvsg.conf", trace.provenance("db.host"));
+        assertEquals("env/prd.conf", trace.provenance("db.port"));
+        // unresolved values have a provenance too
+        assertEquals("env/prd.conf", trace.provenance("url"));
+        assertNull(trace.provenance("missing"));
+    }
+
+    @Test
+    public void provenance_substitution() throws Exception {
+        Files.write(root.resolve("env/prd.conf"), "mongo { host: mongo.prd, db: dms }".getBytes());
+        Files.write(root.resolve("node/dtcmeawsp01.conf"),
+                "mongo: ${?mongo} { port: 27017 }\nmongo-host: ${mongo.host}".getBytes());
+
+        HieraTrace trace = new HieraTrace();
+        hiera.trace(facts, trace);
+
+        // the keys of the substituted subtree are attributed one by one
+        assertNull(trace.provenance("mongo"));
+        assertEquals("dtc/chvsg.conf", trace.provenance("mongo.host"));
+        assertEquals("env/prd.conf", trace.provenance("mongo.db"));
+        assertEquals("node/dtcmeawsp01.conf", trace.provenance("mongo.port"));
+        assertEquals("node/dtcmeawsp01.conf", trace.provenance("mongo-host"));
+    }
+
+}
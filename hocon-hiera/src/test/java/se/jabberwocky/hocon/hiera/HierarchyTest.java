@@ -0,0 +1,105 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HierarchyTest {
+
+    private Hierarchy hierarchy;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        hierarchy = new HoconHieraFileSystem(getClass().getResource("/root").getFile()).hierarchy();
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void paths() throws Exception {
+        facts.put("unreferenced", "ignored");
+
+        List<String> paths = hierarchy.paths(facts);
+
+        assertEquals(11, paths.size());
+        assertEquals("app/com.richemont.dms.commerce.conf", paths.get(0));
+        assertEquals("svc/dms-commerce-core.conf", paths.get(1));
+        assertEquals("node/dtcmeawsp01.conf", paths.get(4));
+        assertEquals("svc-node/dms-commerce-core-dtcmeawsp01.conf", paths.get(10));
+
+        // same result as resolving the hiera config with the facts
+        assertEquals(paths, ConfigFactory.parseString(
+                "hierarchy: " + hierarchy.templates().toString().replace(", ", "\n"))
+                .resolveWith(ConfigFactory.parseMap(facts))
+                .getStringList(HoconHiera.HIERARCHY_CONFIG_KEY));
+    }
+
+    @Test
+    public void facts() throws Exception {
+        assertEquals(Arrays.asList("groupId", "artifactId", "env", "dtc", "hostname"),
+                Arrays.asList(hierarchy.facts().toArray()));
+        assertEquals(hierarchy.facts(), hierarchy.requiredFacts());
+    }
+
+    @Test
+    public void paths_missingFacts() throws Exception {
+        facts.remove("dtc");
+        facts.remove("hostname");
+        try {
+            hierarchy.paths(facts);
+            fail("Expected missing facts to fail");
+        } catch (ConfigException.UnresolvedSubstitution e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("[dtc, hostname]"));
+        }
+    }
+
+    @Test
+    public void paths_environment() throws Exception {
+        String variable = System.getenv().keySet().iterator().next();
+        hierarchy = Hierarchy.compile(ConfigFactory.parseString(
+                "hierarchy: [ \"env/\"${" + variable + "}\".conf\" ]"));
+
+        assertEquals(Collections.singletonList("env/" + System.getenv(variable) + ".conf"),
+                hierarchy.paths(Collections.emptyMap()));
+        // facts take precedence over the environment
+        assertEquals(Collections.singletonList("env/prd.conf"),
+                hierarchy.paths(Collections.singletonMap(variable, "prd")));
+    }
+
+    @Test
+    public void paths_optionalFacts() throws Exception {
+        hierarchy = Hierarchy.compile(ConfigFactory.parseString(
+                "hierarchy: [ \"common.conf\", \"env/\"${?env}\".conf\", \"node/\\u0041\"${a.b}, plain/path ]"));
+
+        assertEquals(Arrays.asList("common.conf", "env/.conf", "node/Ax", "plain/path"),
+                hierarchy.paths(Collections.singletonMap("a.b", "x")));
+        assertTrue(hierarchy.requiredFacts().contains("a.b"));
+        assertFalse(hierarchy.requiredFacts().contains("env"));
+    }
+
+    @Test(expected = ConfigException.Missing.class)
+    public void compile_missingHierarchy() throws Exception {
+        Hierarchy.compile(ConfigFactory.empty());
+    }
+
+    @Test(expected = ConfigException.BadValue.class)
+    public void compile_notTemplates() throws Exception {
+        Hierarchy.compile(ConfigFactory.parseString("hierarchy: [ { path: x } ]"));
+    }
+
+}
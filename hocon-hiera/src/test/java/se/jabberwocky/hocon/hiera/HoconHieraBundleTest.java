@@ -0,0 +1,100 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HoconHieraBundleTest {
+
+    private Path root;
+    private HoconHieraBundle bundle;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        Path file = Files.createTempFile("hiera-", ".bundle");
+        HoconHieraBundle.pack(root, file);
+        bundle = HoconHieraBundle.open(file);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        bundle.close();
+    }
+
+    @Test
+    public void config_path() throws Exception {
+        assertEquals("root", bundle.hiera().getString("some-param"));
+        assertEquals("mongo.cn", bundle.config("dtc/cnpdg.conf").getString("mongo.host"));
+        assertEquals("mongo.cn", bundle.config("/dtc/cnpdg.conf").getString("mongo.host"));
+        assertSame(ConfigFactory.empty(), bundle.config("bogus/path"));
+
+        assertTrue(bundle.paths().contains("node/dtcmeawsp02.conf"));
+    }
+
+    @Test
+    public void config_facts() throws Exception {
+        Map<String, String> facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+
+        assertEquals(new HoconHieraFileSystem(root).config(facts), bundle.config(facts));
+
+        bundle.config(facts);
+        assertEquals(6, bundle.cache().misses());
+    }
+
+    @Test
+    public void open_corruptCount() throws Exception {
+        assertCorrupt(Integer.MAX_VALUE, 0);
+        assertCorrupt(-1, 0);
+    }
+
+    @Test
+    public void open_corruptLength() throws Exception {
+        assertCorrupt(1, -1);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void open_notBundle() throws Exception {
+        HoconHieraBundle.open(root.resolve("hiera.conf"));
+    }
+
+    // -- support
+
+    private static void assertCorrupt(int count, int length) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        stream.writeInt(HoconHieraBundle.MAGIC);
+        stream.writeInt(HoconHieraBundle.VERSION);
+        stream.writeInt(count);
+        stream.writeUTF("hiera.conf");
+        stream.writeLong(32);
+        stream.writeInt(length);
+        stream.writeBytes("hierarchy: []");
+
+        Path file = Files.createTempFile("hiera-", ".bundle");
+        Files.write(file, bytes.toByteArray());
+        try {
+            HoconHieraBundle.open(file).close();
+            fail("Expected a corrupt bundle to fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Corrupt"));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class HoconHieraClasspathTest {
+
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void config_directory() throws Exception {
+        CountingClassLoader classLoader = new CountingClassLoader(getClass().getClassLoader());
+        HoconHieraClasspath hiera = new HoconHieraClasspath(classLoader, "/root/");
+
+        assertEquals("mongo.cn", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+        assertSame(ConfigFactory.empty(), hiera.config("bogus/path"));
+        assertEquals(new HoconHieraFileSystem(getClass().getResource("/root").getFile()).config(facts),
+                hiera.config(facts));
+
+        // only dtc/cnpdg.conf, hiera.conf and the five existing layers are looked up
+        assertEquals(7, classLoader.lookups.get());
+    }
+
+    @Test
+    public void config_jar() throws Exception {
+        Path root = HoconHieraFileSystemTest.copyRoot();
+        Path jar = Files.createTempFile("hiera-", ".jar");
+        try (OutputStream stream = Files.newOutputStream(jar);
+             JarOutputStream jarStream = new JarOutputStream(stream)) {
+            for(Path path : (Iterable<Path>) Files.walk(root).filter(Files::isRegularFile)::iterator) {
+                jarStream.putNextEntry(new JarEntry("hiera/" + root.relativize(path).toString()));
+                jarStream.write(Files.readAllBytes(path));
+                jarStream.closeEntry();
+            }
+        }
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{ jar.toUri().toURL() }, null)) {
+            HoconHieraClasspath hiera = new HoconHieraClasspath(classLoader, "hiera");
+
+            assertEquals("server-1", hiera.config(facts).getString("some-param"));
+            assertTrue(hiera.index().containsKey("node/dtcmeawsp02.conf"));
+            assertFalse(hiera.index().containsKey("svc-node/dms-commerce-core-dtcmeawsp01.conf"));
+        }
+    }
+
+    @Test
+    public void config_jar_emptyRoot() throws Exception {
+        Path root = HoconHieraFileSystemTest.copyRoot();
+        Path jar = Files.createTempFile("hiera-", ".jar");
+        try (OutputStream stream = Files.newOutputStream(jar);
+             JarOutputStream jarStream = new JarOutputStream(stream)) {
+            for(Path path : (Iterable<Path>) Files.walk(root).filter(Files::isRegularFile)::iterator) {
+                jarStream.putNextEntry(new JarEntry(root.relativize(path).toString()));
+                jarStream.write(Files.readAllBytes(path));
+                jarStream.closeEntry();
+            }
+            jarStream.putNextEntry(new JarEntry("com/acme/Shop.class"));
+            jarStream.closeEntry();
+        }
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{ jar.toUri().toURL() }, null)) {
+            HoconHieraClasspath hiera = new HoconHieraClasspath(classLoader, "");
+
+            assertEquals("server-1", hiera.config(facts).getString("some-param"));
+            assertTrue(hiera.index().containsKey("node/dtcmeawsp02.conf"));
+            assertFalse(hiera.index().containsKey("com/acme/Shop.class"));
+        }
+    }
+
+    @Test
+    public void config_index() throws Exception {
+        Path root = HoconHieraFileSystemTest.copyRoot();
+        Path index = HoconHieraClasspath.writeIndex(root);
+        // the index is used instead of scanning the directory
+        Files.delete(root.resolve("dtc/chvsg.conf"));
+        Files.write(root.resolve("dtc/bogus.conf"), "bogus: true".getBytes());
+
+        try (URLClassLoader classLoader = new URLClassLoader(
+                new URL[]{ root.getParent().toUri().toURL() }, null)) {
+            HoconHieraClasspath hiera = new HoconHieraClasspath(classLoader, root.getFileName().toString());
+
+            assertTrue(hiera.index().containsKey("dtc/chvsg.conf"));
+            assertFalse(hiera.index().containsKey("dtc/bogus.conf"));
+            assertFalse(hiera.index().containsKey(HoconHieraClasspath.INDEX_FILE));
+            assertSame(ConfigFactory.empty(), hiera.config("dtc/chvsg.conf"));
+            assertSame(ConfigFactory.empty(), hiera.config("dtc/bogus.conf"));
+        }
+        assertTrue(Files.exists(index));
+    }
+
+    @Test
+    public void config_unindexed() throws Exception {
+        ClassLoader classLoader = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            public Enumeration<URL> getResources(String name) throws IOException {
+                // resources of a protocol that cannot be scanned
+                URL url = getResource(name);
+                if(url == null) {
+                    return Collections.emptyEnumeration();
+                }
+                return Collections.enumeration(Collections.singletonList(
+                        new URL(null, "unscannable:" + name, new URLStreamHandler() {
+                            @Override
+                            protected URLConnection openConnection(URL unscannable) throws IOException {
+                                return url.openConnection();
+                            }
+                        })));
+            }
+        };
+        HoconHieraClasspath hiera = new HoconHieraClasspath(classLoader, "root");
+        assertNull(hiera.index());
+
+        List<LogRecord> warnings = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if(record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                    warnings.add(record);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(HoconHieraClasspath.class.getName());
+        logger.addHandler(handler);
+        try {
+            assertEquals(new HoconHieraFileSystem(getClass().getResource("/root").getFile()).config(facts),
+                    hiera.config(facts));
+            assertSame(ConfigFactory.empty(), hiera.config("bogus/path"));
+        } finally {
+            logger.removeHandler(handler);
+        }
+        // absent layers are not worth a warning
+        assertEquals(Collections.emptyList(), warnings);
+
+        // fact values cannot reach resources outside of the root
+        assertNotNull(classLoader.getResource("root/dtc/../dtc/cnpdg.conf"));
+        assertSame(ConfigFactory.empty(), hiera.config("dtc/../../root/dtc/cnpdg.conf"));
+        assertFalse(hiera.exists("../root/dtc/cnpdg.conf"));
+        assertEquals(HoconHiera.MISSING_FINGERPRINT, hiera.fingerprint("../root/dtc/cnpdg.conf"));
+    }
+
+    // -- support
+
+    private static class CountingClassLoader extends ClassLoader {
+
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        private CountingClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        public URL getResource(String name) {
+            lookups.incrementAndGet();
+            return super.getResource(name);
+        }
+    }
+
+}
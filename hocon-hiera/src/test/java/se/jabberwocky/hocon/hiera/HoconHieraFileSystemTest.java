@@ -1,15 +1,33 @@
 package se.jabberwocky.hocon.hiera;
 
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
 import com.typesafe.config.ConfigFactory;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 
@@ -73,6 +91,19 @@ public class HoconHieraFileSystemTest {
     }
 
 
+    @Test
+    public void config_outsideRoot() throws Exception {
+        Path root = copyRoot();
+        Files.write(root.resolveSibling(root.getFileName() + ".conf"), "secret: true".getBytes());
+        hiera = new HoconHieraFileSystem(root.resolve("env"));
+
+        String file = "../../" + root.getFileName() + ".conf";
+        assertTrue(hiera.config(file).isEmpty());
+        assertFalse(hiera.exists(file));
+        assertEquals(0, hiera.size(file));
+        assertEquals(HoconHiera.MISSING_FINGERPRINT, hiera.fingerprint(file));
+    }
+
     @Test
     public void config_facts() throws Exception {
         config = hiera.config(facts);
@@ -81,4 +112,193 @@ public class HoconHieraFileSystemTest {
         assertEquals("prd", config.getString("env"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void config_prefix() throws Exception {
+        Path root = copyRoot();
+        Files.write(root.resolve("env/prd.conf"), ("env: prd\n"
+                + "mongo { host: mongo.prd, port: 27017, url: \"mongodb://\"${mongo.host} }").getBytes());
+        hiera = new HoconHieraFileSystem(root);
+
+        Config mongo = hiera.config(facts, "mongo");
+        assertEquals(Collections.singleton("mongo"), mongo.root().keySet());
+        assertEquals(hiera.config(facts).resolve().getObject("mongo"), mongo.resolve().getObject("mongo"));
+        assertEquals("mongodb://mongo.ch", mongo.resolve().getString("mongo.url"));
+        assertEquals(27017, hiera.config(facts, "mongo.port").getInt("mongo.port"));
+        assertTrue(hiera.config(facts, "missing").isEmpty());
+    }
+
+    @Test
+    public void config_prefix_substitution() throws Exception {
+        Path root = copyRoot();
+        Files.write(root.resolve("node/dtcmeawsp01.conf"), "mongo: ${?mongo} { port: 27017 }".getBytes());
+        hiera = new HoconHieraFileSystem(root);
+
+        // the substitution does not hide the layers below
+        Config mongo = hiera.config(facts, "mongo");
+        assertEquals(Collections.singleton("mongo"), mongo.root().keySet());
+        assertEquals(hiera.config(facts).resolve().getObject("mongo"), mongo.resolve().getObject("mongo"));
+        assertEquals("mongo.ch", mongo.resolve().getString("mongo.host"));
+        assertEquals(27017, hiera.config(facts, "mongo.port").resolve().getInt("mongo.port"));
+    }
+
+    @Test
+    public void config_prefix_hidden() throws Exception {
+        Path root = copyRoot();
+        Files.write(root.resolve("node/dtcmeawsp01.conf"), "http: disabled".getBytes());
+        hiera = new HoconHieraFileSystem(root);
+
+        assertEquals("disabled", hiera.config(facts, "http").getString("http"));
+        assertTrue(hiera.config(facts, "http.baseName").isEmpty());
+        assertFalse(hiera.config(facts).hasPath("http.baseName"));
+    }
+
+    @Test
+    public void config_facts_executor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            config = hiera.config(facts, executor);
+            assertEquals(hiera.config(facts), config);
+            assertEquals("server-1", config.getString("some-param"));
+            assertEquals("mongo.ch", config.getString("mongo.host"));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(hiera.config(facts), hiera.config(facts, HieraExecutors.defaultExecutor()));
+    }
+
+    @Test
+    public void configAsync() throws Exception {
+        assertEquals(hiera.config(facts), hiera.configAsync(facts).get());
+        assertEquals(hiera.hiera(), hiera.hieraAsync().get());
+        assertEquals(hiera.config("node/dtcmeawsp01.conf"), hiera.configAsync("node/dtcmeawsp01.conf").get());
+    }
+
+    @Test
+    public void configAsync_coalesced() throws Exception {
+        // tasks only run when the queue is drained, i.e. both lookups are in flight at the same time
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        CompletableFuture<Config> first = hiera.configAsync(facts, tasks::add);
+        // facts not referenced by the hierarchy do not prevent sharing the lookup
+        Map<String, String> request = new HashMap<>(facts);
+        request.put("requestId", "42");
+        CompletableFuture<Config> second = hiera.configAsync(request, tasks::add);
+
+        while(!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        assertEquals(1, hiera.coalesced());
+        assertEquals(hiera.config(facts), first.get());
+        assertSame(first.get(), second.get());
+
+        // completed lookups are not shared
+        hiera.configAsync(facts, tasks::add);
+        while(!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        assertEquals(1, hiera.coalesced());
+    }
+
+    @Test
+    public void configAsync_failed() throws Exception {
+        facts.remove("hostname");
+        try {
+            hiera.configAsync(facts).get();
+            fail("Expected a missing fact");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConfigException.UnresolvedSubstitution);
+        }
+    }
+
+    @Test
+    public void configs() throws Exception {
+        Map<String, String> node2 = new HashMap<>(facts);
+        node2.put("hostname", "dtcmeawsp02");
+        Map<String, String> cn = new HashMap<>(facts);
+        cn.put("dtc", "cnpdg");
+
+        Map<Map<String, String>, Config> configs = hiera.configs(Arrays.asList(facts, node2, cn, facts));
+
+        assertEquals(3, configs.size());
+        assertEquals(Arrays.asList(facts, node2, cn), new ArrayList<>(configs.keySet()));
+        assertEquals("server-1", configs.get(facts).getString("some-param"));
+        assertEquals("server-2", configs.get(node2).getString("some-param"));
+        assertEquals("mongo.cn", configs.get(cn).getString("mongo.host"));
+
+        // hiera.conf and the seven distinct existing layers are parsed once
+        assertEquals(8, hiera.cache().misses());
+        assertEquals(0, hiera.cache().hits());
+    }
+
+    @Test
+    public void config_zip() throws Exception {
+        Path archive = Files.createTempDirectory("hiera-").resolve("hiera.zip");
+        Path root = copyRoot();
+
+        URI uri = URI.create("jar:" + archive.toUri());
+        try (FileSystem zip = FileSystems.newFileSystem(uri, Collections.singletonMap("create", "true"))) {
+            for(Path path : (Iterable<Path>) Files.walk(root)::iterator) {
+                Path target = zip.getPath("/hiera", root.relativize(path).toString());
+                if(Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(path, target);
+                }
+            }
+        }
+
+        HoconHieraFileSystem zipped = HoconHieraFileSystem.zip(archive, "/hiera");
+        try {
+            assertEquals("mongo.cn", zipped.config("dtc/cnpdg.conf").getString("mongo.host"));
+            assertSame(ConfigFactory.empty(), zipped.config("bogus/path"));
+            assertEquals(hiera.config(facts), zipped.config(facts));
+        } finally {
+            zipped.fileSystem().close();
+        }
+    }
+
+    @Test
+    public void config_cached() throws Exception {
+        hiera.config(facts);
+        long misses = hiera.cache().misses();
+        assertEquals(6, misses);
+
+        config = hiera.config(facts);
+        assertEquals("server-1", config.getString("some-param"));
+        assertEquals(misses, hiera.cache().misses());
+        assertEquals(6, hiera.cache().hits());
+    }
+
+    @Test
+    public void config_modified() throws Exception {
+        Path root = copyRoot();
+        hiera = new HoconHieraFileSystem(root);
+        assertEquals("mongo.cn", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+
+        Path file = root.resolve("dtc/cnpdg.conf");
+        Files.write(file, "mongo.host: \"mongo.cn.2\"".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+
+        assertEquals("mongo.cn.2", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+        assertEquals(2, hiera.cache().misses());
+    }
+
+    // -- support
+
+    /**
+     * Copy the test hiera root to a temporary directory that can be modified by the tests.
+     */
+    static Path copyRoot() throws IOException {
+        Path source = new File(HoconHieraFileSystemTest.class.getResource("/root").getFile()).toPath();
+        Path target = Files.createTempDirectory("hiera-");
+        Files.walk(source).skip(1).forEach(path -> {
+            try {
+                Files.copy(path, target.resolve(source.relativize(path).toString()));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not copy '" + path + "'", e);
+            }
+        });
+        return target;
+    }
+
+}
@@ -0,0 +1,167 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HoconHieraToolTest {
+
+    private Path root;
+    private Path matrix;
+    private Path output;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        output = Files.createTempDirectory("hiera-output");
+        matrix = Files.createTempFile("hiera-", ".conf");
+        writeMatrix("dtcmeawsp01", "dtcmeawsp02");
+    }
+
+    @Test
+    public void printHelp() throws IOException {
+        HoconHieraTool.printHelp();
+    }
+
+    @Test
+    public void nodes() throws Exception {
+        Map<String, Map<String, String>> nodes = HoconHieraTool.nodes(matrix);
+        assertEquals(2, nodes.size());
+        assertEquals("dtcmeawsp02", nodes.get("dtcmeawsp02.acme.com").get("hostname"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodes_illegalName() throws Exception {
+        Files.write(matrix, "nodes { \"../evil\" { env: prd } }".getBytes(StandardCharsets.UTF_8));
+        HoconHieraTool.nodes(matrix);
+    }
+
+    @Test
+    public void run() throws Exception {
+        HoconHieraTool tool = run(false);
+        assertEquals(2, tool.rendered());
+        assertEquals(0, tool.failed());
+
+        assertEquals("server-1", ConfigFactory.parseFile(output.resolve("dtcmeawsp01.acme.com.conf").toFile())
+                .getString("some-param"));
+        assertEquals("server-2", ConfigFactory.parseFile(output.resolve("dtcmeawsp02.acme.com.conf").toFile())
+                .getString("some-param"));
+        assertTrue(Files.exists(output.resolve(HoconHieraTool.MANIFEST_FILE)));
+    }
+
+    @Test
+    public void run_incremental() throws Exception {
+        run(false);
+
+        HoconHieraTool tool = run(false);
+        assertEquals(0, tool.rendered());
+        assertEquals(2, tool.unchanged());
+
+        Path file = root.resolve("node/dtcmeawsp01.conf");
+        Files.write(file, "some-param: changed".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+
+        tool = run(false);
+        assertEquals(1, tool.rendered());
+        assertEquals(1, tool.unchanged());
+        assertEquals("changed", ConfigFactory.parseFile(output.resolve("dtcmeawsp01.acme.com.conf").toFile())
+                .getString("some-param"));
+    }
+
+    @Test
+    public void run_json() throws Exception {
+        run(false);
+        HoconHieraTool tool = run(false, true);
+        assertEquals(2, tool.rendered());
+
+        // rendered again in the other format, replacing the previous output
+        Path file = output.resolve("dtcmeawsp01.acme.com.json");
+        assertEquals("server-1", ConfigFactory.parseFile(file.toFile()).getString("some-param"));
+        assertFalse(Files.exists(output.resolve("dtcmeawsp01.acme.com.conf")));
+
+        writeMatrix("dtcmeawsp02");
+        assertEquals(1, run(false, true).deleted());
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void run_force() throws Exception {
+        run(false);
+        assertEquals(2, run(true).rendered());
+    }
+
+    @Test
+    public void run_removed() throws Exception {
+        run(false);
+        writeMatrix("dtcmeawsp01");
+
+        HoconHieraTool tool = run(false);
+        assertEquals(1, tool.deleted());
+        assertFalse(Files.exists(output.resolve("dtcmeawsp02.acme.com.conf")));
+    }
+
+    @Test
+    public void run_failed() throws Exception {
+        Files.write(matrix, "nodes { broken { env: prd } }".getBytes(StandardCharsets.UTF_8));
+
+        HoconHieraTool tool = run(false);
+        assertEquals(1, tool.failed());
+        assertFalse(Files.exists(output.resolve("broken.conf")));
+    }
+
+    @Test
+    public void run_failed_stale() throws Exception {
+        run(false);
+        Path file = root.resolve("node/dtcmeawsp01.conf");
+        Files.write(file, "some-param: ${HOME}".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+
+        // not resolved against the environment, the previous configuration is not left looking current
+        HoconHieraTool tool = run(false);
+        assertEquals(1, tool.failed());
+        assertFalse(Files.exists(output.resolve("dtcmeawsp01.acme.com.conf")));
+        assertTrue(Files.exists(output.resolve("dtcmeawsp02.acme.com.conf")));
+
+        tool = run(false);
+        assertEquals(1, tool.failed());
+        assertEquals(1, tool.unchanged());
+    }
+
+    // -- support
+
+    private HoconHieraTool run(boolean force) {
+        return run(force, false);
+    }
+
+    private HoconHieraTool run(boolean force, boolean json) {
+        HoconHieraTool tool = new HoconHieraTool(new HoconHieraFileSystem(root), HoconHieraTool.nodes(matrix),
+                output, json, force, 2);
+        tool.run();
+        return tool;
+    }
+
+    private void writeMatrix(String... hostnames) throws IOException {
+        StringBuilder builder = new StringBuilder("nodes {\n");
+        for(String hostname : hostnames) {
+            builder.append("  \"").append(hostname).append(".acme.com\" {\n")
+                    .append("    groupId: com.richemont.dms.commerce\n")
+                    .append("    artifactId: dms-commerce-core\n")
+                    .append("    env: prd\n")
+                    .append("    dtc: chvsg\n")
+                    .append("    hostname: ").append(hostname).append("\n")
+                    .append("  }\n");
+        }
+        builder.append("}\n");
+        Files.write(matrix, builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,172 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class LayeredConfigTest {
+
+    private Path root;
+    private HoconHieraFileSystem hiera;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        hiera = new HoconHieraFileSystem(root);
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void layered() throws Exception {
+        LayeredConfig config = hiera.layered(facts);
+
+        assertEquals("server-1", config.getString("some-param"));
+        assertEquals("web-1.acme.com", config.getString("host"));
+        assertFalse(config.hasPath("missing"));
+        assertEquals(3, config.lookups());
+        assertFalse(config.isMerged());
+
+        assertEquals(hiera.config(facts).root(), config.toConfig().root());
+        assertTrue(config.isMerged());
+    }
+
+    @Test
+    public void getters() throws Exception {
+        LayeredConfig config = layers(
+                "a { x: 1, y: 2 }, s: low, n: 5, d: 10s, l: [1, 2]",
+                "a { y: 3, z: 4 }, s: high, b: 64k, nil: null");
+
+        assertEquals(1, config.getInt("a.x"));
+        assertEquals(3, config.getInt("a.y"));
+        assertEquals(4, config.getLong("a.z"));
+        assertEquals(Arrays.asList("x", "y", "z"), sorted(config.getObject("a").keySet()));
+        assertEquals(3, config.getConfig("a").getInt("y"));
+        assertEquals("high", config.getString("s"));
+        assertEquals("5", config.getString("n"));
+        assertEquals(10_000, config.getDuration("d").toMillis());
+        assertEquals(Arrays.asList(1, 2), config.getIntList("l"));
+        assertEquals(64 * 1024, config.getBytes("b").longValue());
+        assertTrue(config.getIsNull("nil"));
+        assertFalse(config.hasPath("nil"));
+        assertTrue(config.hasPathOrNull("nil"));
+        assertFalse(config.isMerged());
+    }
+
+    @Test
+    public void hidden() throws Exception {
+        String[] layers = {"a { x: 1 }, b { x: 1 }, c: 1", "a: 2, b: null, c { x: 2 }"};
+        LayeredConfig config = layers(layers);
+
+        assertEquals(2, config.getInt("a"));
+        assertFalse(config.hasPath("a.x"));
+        assertTrue(config.getIsNull("b"));
+        assertFalse(config.hasPathOrNull("b.x"));
+        assertEquals(2, config.getInt("c.x"));
+        assertEquals(1, config.getObject("c").size());
+
+        try {
+            config.getInt("a.x");
+            fail("Expected the ancestor to be of the wrong type");
+        } catch (ConfigException.WrongType e) {
+            // expected
+        }
+        try {
+            config.getInt("missing");
+            fail("Expected the path to be missing");
+        } catch (ConfigException.Missing e) {
+            // expected
+        }
+        assertEquals(merge(layers).root(), config.toConfig().root());
+    }
+
+    @Test
+    public void resolve() throws Exception {
+        String[] layers = {"host: low, url: \"http://\"${host}, port: 80", "host: high, db { url: ${url}\"/db\" }"};
+        LayeredConfig config = layers(layers);
+
+        assertFalse(config.isResolved());
+        assertEquals(80, config.getInt("port"));
+        try {
+            config.getString("url");
+            fail("Expected the path to be unresolved");
+        } catch (ConfigException.NotResolved e) {
+            // expected
+        }
+
+        LayeredConfig resolved = config.resolve();
+        assertTrue(resolved.isResolved());
+        assertEquals(80, resolved.getInt("port"));
+        assertFalse(resolved.isMerged());
+
+        assertEquals("http://high", resolved.getString("url"));
+        assertEquals("http://high/db", resolved.getString("db.url"));
+        assertTrue(resolved.isMerged());
+        assertEquals(merge(layers).resolve().root(), resolved.toConfig().root());
+    }
+
+    @Test
+    public void resolve_resolved() throws Exception {
+        LayeredConfig config = layers("a: 1", "b: 2");
+        assertTrue(config.isResolved());
+        assertSame(config, config.resolve());
+    }
+
+    @Test
+    public void toConfig() throws Exception {
+        LayeredConfig config = layers("a: 1, b: ${a}", "c: 3");
+        Config merged = config.toConfig();
+
+        // the merged configuration is a plain config, merged and resolved by Typesafe Config as any other
+        assertSame(merged, config.toConfig());
+        assertEquals(2, ConfigFactory.parseString("z: 2").withFallback(merged).resolve().getInt("z"));
+        assertEquals(1, ConfigFactory.parseString("d: ${b}").resolveWith(merged.resolve()).getInt("d"));
+        assertEquals(merged.root(), merge("a: 1, b: ${a}", "c: 3").root());
+    }
+
+    @Test
+    public void isEmpty() throws Exception {
+        assertTrue(layers("", "").isEmpty());
+        assertFalse(layers("", "a: 1").isEmpty());
+    }
+
+    // -- support
+
+    private static LayeredConfig layers(String... layers) {
+        return new LayeredConfig(parse(layers));
+    }
+
+    private static Config merge(String... layers) {
+        return Layers.merge(parse(layers));
+    }
+
+    private static List<Config> parse(String... layers) {
+        return Arrays.stream(layers).map(ConfigFactory::parseString).collect(Collectors.toList());
+    }
+
+    private static List<String> sorted(Set<String> keys) {
+        List<String> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
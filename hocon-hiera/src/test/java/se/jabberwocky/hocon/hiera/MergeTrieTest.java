@@ -0,0 +1,94 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MergeTrieTest {
+
+    private final Config app = ConfigFactory.parseString("a: app, b: app, c: app");
+    private final Config env = ConfigFactory.parseString("b: env");
+    private final Config node1 = ConfigFactory.parseString("c: node1");
+    private final Config node2 = ConfigFactory.parseString("c: node2");
+
+    private final List<String> paths1 = Arrays.asList("app.conf", "env.conf", "node1.conf");
+    private final List<String> paths2 = Arrays.asList("app.conf", "env.conf", "node2.conf");
+
+    @Test
+    public void merge() throws Exception {
+        MergeTrie trie = new MergeTrie();
+
+        Config config = trie.merge(paths1, Arrays.asList(app, env, node1));
+        assertEquals(Layers.merge(Arrays.asList(app, env, node1)), config);
+        assertEquals(0, trie.hits());
+        assertEquals(3, trie.misses());
+
+        config = trie.merge(paths2, Arrays.asList(app, env, node2));
+        assertEquals("app", config.getString("a"));
+        assertEquals("env", config.getString("b"));
+        assertEquals("node2", config.getString("c"));
+        assertEquals(2, trie.hits());
+        assertEquals(4, trie.misses());
+        assertEquals(4, trie.size());
+    }
+
+    @Test
+    public void merge_layerChanged() throws Exception {
+        MergeTrie trie = new MergeTrie();
+        trie.merge(paths1, Arrays.asList(app, env, node1));
+
+        Config changed = ConfigFactory.parseString("b: changed");
+        Config config = trie.merge(paths1, Arrays.asList(app, changed, node1));
+
+        assertEquals("changed", config.getString("b"));
+        assertEquals(1, trie.hits());
+        assertEquals(3, trie.size());
+    }
+
+    @Test
+    public void merge_evictsLeastRecentlyUsed() throws Exception {
+        MergeTrie trie = new MergeTrie(4);
+        trie.merge(paths1, Arrays.asList(app, env, node1));
+        trie.merge(paths2, Arrays.asList(app, env, node2));
+        assertEquals(4, trie.size());
+
+        // node1 is the least recently used leaf
+        trie.merge(Arrays.asList("app.conf", "node1.conf"), Arrays.asList(app, node1));
+        assertEquals(4, trie.size());
+        assertEquals(1, trie.evictions());
+
+        long hits = trie.hits();
+        trie.merge(paths2, Arrays.asList(app, env, node2));
+        assertEquals(hits + 3, trie.hits());
+    }
+
+    @Test
+    public void hiera_withMergeTrie() throws Exception {
+        HoconHieraFileSystem hiera = new HoconHieraFileSystem(getClass().getResource("/root").getFile())
+                .withMergeTrie(MergeTrie.DEFAULT_MAX_NODES);
+
+        Map<String, String> facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+        hiera.config(facts);
+
+        facts.put("hostname", "dtcmeawsp02");
+        Config config = hiera.config(facts);
+
+        assertEquals("server-2", config.getString("some-param"));
+        assertEquals("mongo.ch", config.getString("mongo.host"));
+        // the first four layers are shared by both nodes
+        assertEquals(4, hiera.mergeTrie().hits());
+    }
+
+}
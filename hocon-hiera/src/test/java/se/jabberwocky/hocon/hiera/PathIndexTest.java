@@ -0,0 +1,87 @@
+package se.jabberwocky.hocon.hiera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+public class PathIndexTest {
+
+    private Path root;
+    private PathIndex index;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        index = PathIndex.scan(root);
+    }
+
+    @Test
+    public void exists() throws Exception {
+        assertTrue(index.exists(root.resolve("hiera.conf")));
+        assertTrue(index.exists(root.resolve("dtc/cnpdg.conf")));
+        assertTrue(index.exists(root.resolve("env/../dtc/cnpdg.conf")));
+
+        assertFalse(index.exists(root.resolve("dtc/bogus.conf")));
+        assertFalse(index.exists(root.resolve("svc-dtc/dms-commerce-core-chvsg.conf")));
+        assertFalse(index.exists(root.resolve("dtc")));
+    }
+
+    @Test
+    public void refresh() throws Exception {
+        Path file = root.resolve("dtc/bogus.conf");
+        Files.write(file, "mongo.host: bogus".getBytes());
+        touch(root.resolve("dtc"));
+
+        assertFalse(index.exists(file));
+        assertEquals(1, index.refresh());
+        assertTrue(index.exists(file));
+        assertEquals(0, index.refresh());
+    }
+
+    @Test
+    public void refresh_newDirectory() throws Exception {
+        Path file = root.resolve("svc-dtc/dms-commerce-core-chvsg.conf");
+        Files.createDirectories(file.getParent());
+        Files.write(file, "mongo.host: svc".getBytes());
+        touch(root);
+
+        assertEquals(2, index.refresh());
+        assertTrue(index.exists(file));
+    }
+
+    @Test
+    public void refresh_directory() throws Exception {
+        Path file = root.resolve("dtc/cnpdg.conf");
+        Files.delete(file);
+
+        assertEquals(1, index.refresh(root.resolve("dtc")));
+        assertFalse(index.exists(file));
+    }
+
+    @Test
+    public void hiera_withPathIndex() throws Exception {
+        HoconHieraFileSystem hiera = new HoconHieraFileSystem(root).withPathIndex();
+        assertEquals("mongo.cn", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+
+        Path file = root.resolve("svc-env/dms-commerce-core-prd.conf");
+        Files.createDirectories(file.getParent());
+        Files.write(file, "env: svc".getBytes());
+        touch(root);
+
+        assertTrue(hiera.config("svc-env/dms-commerce-core-prd.conf").isEmpty());
+        hiera.refreshIndex();
+        assertEquals("svc", hiera.config("svc-env/dms-commerce-core-prd.conf").getString("env"));
+    }
+
+    // -- support
+
+    private static void touch(Path directory) throws Exception {
+        Files.setLastModifiedTime(directory, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+    }
+
+}
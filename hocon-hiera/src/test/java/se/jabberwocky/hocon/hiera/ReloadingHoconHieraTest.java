@@ -0,0 +1,100 @@
+package se.jabberwocky.hocon.hiera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReloadingHoconHieraTest {
+
+    private Path root;
+    private ReloadingHoconHiera hiera;
+    private BlockingQueue<Set<String>> changes;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        hiera = new ReloadingHoconHiera(new HoconHieraFileSystem(root).withPathIndex());
+        changes = new LinkedBlockingQueue<>();
+        hiera.addListener(changes::add);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        hiera.close();
+    }
+
+    @Test
+    public void changed_modified() throws Exception {
+        assertEquals("mongo.cn", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+
+        Files.write(root.resolve("dtc/cnpdg.conf"), "mongo.host: \"mongo.cn.2\"".getBytes());
+
+        Set<String> paths = changes.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No change notification received", paths);
+        assertTrue(paths.contains("dtc/cnpdg.conf"));
+        assertEquals("mongo.cn.2", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+    }
+
+    @Test
+    public void changed_newDirectory() throws Exception {
+        assertTrue(hiera.config("svc-dtc/dms-commerce-core-chvsg.conf").isEmpty());
+
+        Path directory = Files.createDirectory(root.resolve("svc-dtc"));
+        Files.write(directory.resolve("dms-commerce-core-chvsg.conf"), "mongo.host: svc".getBytes());
+
+        assertTrue(awaitChange("svc-dtc/dms-commerce-core-chvsg.conf"));
+        assertEquals("svc", hiera.config("svc-dtc/dms-commerce-core-chvsg.conf").getString("mongo.host"));
+    }
+
+    @Test
+    public void changed_invalidateFailed() throws Exception {
+        hiera.close();
+        AtomicInteger failures = new AtomicInteger(1);
+        hiera = new ReloadingHoconHiera(new HoconHieraFileSystem(root) {
+            @Override
+            public void invalidate(Collection<String> files) {
+                if(failures.getAndDecrement() > 0) {
+                    throw new RuntimeException("Could not rescan");
+                }
+                super.invalidate(files);
+            }
+        });
+        hiera.addListener(changes::add);
+        assertEquals("mongo.cn", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+
+        // listeners resync as if the hiera config had changed
+        Files.write(root.resolve("dtc/cnpdg.conf"), "mongo.host: \"mongo.cn.2\"".getBytes());
+        assertTrue(awaitChange(HoconHiera.HIERA_CONFIG_FILE));
+        assertEquals("mongo.cn.2", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+
+        // and the watch thread keeps reloading
+        Files.write(root.resolve("dtc/cnpdg.conf"), "mongo.host: \"mongo.cn.3\"".getBytes());
+        assertTrue(awaitChange("dtc/cnpdg.conf"));
+        assertEquals("mongo.cn.3", hiera.config("dtc/cnpdg.conf").getString("mongo.host"));
+    }
+
+    // -- support
+
+    private boolean awaitChange(String path) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(System.currentTimeMillis() < deadline) {
+            Set<String> paths = changes.poll(100, TimeUnit.MILLISECONDS);
+            if(paths != null && paths.contains(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
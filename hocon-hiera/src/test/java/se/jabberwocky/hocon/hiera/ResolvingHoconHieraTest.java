@@ -0,0 +1,170 @@
+package se.jabberwocky.hocon.hiera;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ResolvingHoconHieraTest {
+
+    private Path root;
+    private HoconHieraFileSystem fileSystem;
+    private ResolvingHoconHiera hiera;
+    private Map<String, String> facts;
+
+    @Before
+    public void setup() throws Exception {
+        root = HoconHieraFileSystemTest.copyRoot();
+        write("env/prd.conf", "env: prd\n"
+                + "db { host: db.prd, port: 5432 }\n"
+                + "url: \"jdbc://\"${db.host}\":\"${db.port}\n"
+                + "node: ${hostname}\n"
+                + "name: plain");
+        fileSystem = new HoconHieraFileSystem(root);
+        hiera = new ResolvingHoconHiera(fileSystem, ConfigFactory.empty(), 16);
+
+        facts = new HashMap<>();
+        facts.put("groupId", "com.richemont.dms.commerce");
+        facts.put("artifactId", "dms-commerce-core");
+        facts.put("env", "prd");
+        facts.put("dtc", "chvsg");
+        facts.put("hostname", "dtcmeawsp01");
+    }
+
+    @Test
+    public void config_resolved() throws Exception {
+        Config config = hiera.config(facts);
+        assertTrue(config.isResolved());
+        assertEquals("jdbc://db.prd:5432", config.getString("url"));
+        assertEquals("server-1", config.getString("some-param"));
+        // facts are a fallback of the substitutions but not part of the configuration
+        assertEquals("dtcmeawsp01", config.getString("node"));
+        assertFalse(config.hasPath("hostname"));
+
+        assertSame(config, hiera.config(facts));
+        assertEquals(1, hiera.hits());
+        assertEquals(1, hiera.fullResolutions());
+    }
+
+    @Test
+    public void config_overrides() throws Exception {
+        hiera = new ResolvingHoconHiera(fileSystem, ConfigFactory.parseString("db.port: 6543"), 16);
+        assertEquals("jdbc://db.prd:6543", hiera.config(facts).getString("url"));
+    }
+
+    @Test
+    public void changed_partial() throws Exception {
+        hiera.config(facts);
+
+        write("dtc/chvsg.conf", "mongo { host: mongo.ch }\ndb.host: db.chvsg");
+        hiera.changed(Collections.singleton("dtc/chvsg.conf"));
+
+        // the changed key and the key referencing it
+        assertEquals(1, hiera.partialResolutions());
+        assertEquals(2, hiera.resolvedKeys());
+        assertEquals(1, hiera.fullResolutions());
+        assertEquals(resolved(), hiera.config(facts).root());
+        assertEquals("jdbc://db.chvsg:5432", hiera.config(facts).getString("url"));
+    }
+
+    @Test
+    public void changed_removed() throws Exception {
+        write("node/dtcmeawsp01.conf", "host: web-1.acme.com\nsome-param: server-1\nextra { a: 1, b: ${db.port} }");
+        hiera.config(facts);
+
+        write("node/dtcmeawsp01.conf", "host: web-1.acme.com\nsome-param: server-1");
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+
+        assertEquals(1, hiera.partialResolutions());
+        assertFalse(hiera.config(facts).hasPath("extra"));
+        assertEquals(resolved(), hiera.config(facts).root());
+    }
+
+    @Test
+    public void changed_optional() throws Exception {
+        write("env/prd.conf", "env: prd\nfoo: bar\nopt: ${?foo}");
+        assertEquals("bar", hiera.config(facts).getString("opt"));
+
+        write("env/prd.conf", "env: prd\nopt: ${?foo}");
+        hiera.changed(Collections.singleton("env/prd.conf"));
+
+        // the optional substitution no longer resolves, the key is removed
+        assertEquals(1, hiera.partialResolutions());
+        assertFalse(hiera.config(facts).hasPath("opt"));
+        assertEquals(resolved(), hiera.config(facts).root());
+    }
+
+    @Test
+    public void changed_unaffected() throws Exception {
+        Map<String, String> other = new HashMap<>(facts);
+        other.put("dtc", "cnpdg");
+        Config config = hiera.config(facts);
+        hiera.config(other);
+
+        hiera.changed(Collections.singleton("dtc/cnpdg.conf"));
+        assertSame(config, hiera.config(facts));
+        assertEquals(2, hiera.size());
+
+        hiera.changed(Collections.singleton(HoconHiera.HIERA_CONFIG_FILE));
+        assertEquals(0, hiera.size());
+        assertNotSame(config, hiera.config(facts));
+    }
+
+    @Test
+    public void changed_selfReferential() throws Exception {
+        write("node/dtcmeawsp01.conf", "host: web-1.acme.com\nhosts: ${?hosts} [${host}]");
+        hiera.config(facts);
+
+        write("node/dtcmeawsp01.conf", "host: web-2.acme.com\nhosts: ${?hosts} [${host}]");
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+
+        assertEquals(0, hiera.partialResolutions());
+        assertEquals(2, hiera.fullResolutions());
+        assertEquals(Collections.singletonList("web-2.acme.com"), hiera.config(facts).getStringList("hosts"));
+    }
+
+    @Test
+    public void changed_selfReferential_lowerLayer() throws Exception {
+        write("dtc/chvsg.conf", "hosts: [web-0.acme.com]\nmongo { host: mongo.ch }");
+        write("node/dtcmeawsp01.conf", "host: web-1.acme.com\nhosts: ${?hosts} [${host}]\n"
+                + "mongo: ${?mongo} { port: 27017 }");
+        Config config = hiera.config(facts);
+        assertEquals(Arrays.asList("web-0.acme.com", "web-1.acme.com"), config.getStringList("hosts"));
+        assertEquals("mongo.ch", config.getString("mongo.host"));
+        assertEquals(27017, config.getInt("mongo.port"));
+
+        write("node/dtcmeawsp01.conf", "host: web-2.acme.com\nhosts: ${?hosts} [${host}]\n"
+                + "mongo: ${?mongo} { port: 27017 }");
+        hiera.changed(Collections.singleton("node/dtcmeawsp01.conf"));
+
+        assertEquals(0, hiera.partialResolutions());
+        assertEquals(Arrays.asList("web-0.acme.com", "web-2.acme.com"), hiera.config(facts).getStringList("hosts"));
+        assertEquals(resolved(), hiera.config(facts).root());
+    }
+
+    // -- support
+
+    private void write(String path, String content) throws Exception {
+        Path file = root.resolve(path);
+        Files.write(file, content.getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+    }
+
+    /**
+     * The configuration resolved in full by a new instance.
+     */
+    private Object resolved() {
+        return new ResolvingHoconHiera(new HoconHieraFileSystem(root), ConfigFactory.empty(), 16)
+                .config(facts).root();
+    }
+}